@@ -0,0 +1,94 @@
+package org.kohsuke.junit;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Calls marshalled by {@link ThreadMarshaller} from the benchmark threads (producers)
+ * to a single consumer thread.
+ *
+ * <p>
+ * Run with {@link ThreadSweep} to see how this scales from 1 to 64 producers.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+public class MarshallerBenchmark {
+    private static final int BATCH = 1000;
+
+    public interface Target {
+        void fire(int x);
+        int call(int x);
+    }
+
+    private ThreadMarshaller tm;
+    private Target proxy;
+    private Thread consumer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tm = new ThreadMarshaller(Target.class, new Target() {
+            // only touched by the consumer thread
+            private int sum;
+
+            public void fire(int x) {
+                sum += x;
+            }
+
+            public int call(int x) {
+                return sum += x;
+            }
+        });
+        tm.setAsync(true);
+        proxy = (Target)tm.getProxy();
+        consumer = new Thread(new Runnable() {
+            public void run() {
+                tm.run();
+            }
+        },"consumer");
+        consumer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        tm.finish();
+        consumer.join();
+    }
+
+    /**
+     * Latency of a call that returns a value, where the producer waits for the consumer.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int syncCall() {
+        return proxy.call(1);
+    }
+
+    /**
+     * Throughput of fire-and-forget calls, including the time for the consumer to drain them.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void asyncCall() {
+        for( int i=0; i<BATCH; i++ )
+            proxy.fire(i);
+        tm.flush();
+    }
+}
@@ -0,0 +1,79 @@
+package org.kohsuke.junit;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of printing to {@link ParallelPrintStream} from many threads at once.
+ *
+ * <p>
+ * Every {@value #LINES_PER_TEST} lines, a thread detaches its buffer and writes it out,
+ * as a worker does at the end of a test. With {@code sharedBuffer}, all the threads
+ * write to the same buffer, as threads started by a single test do.
+ *
+ * <p>
+ * Run with {@link ThreadSweep} to see how this scales from 1 to 64 threads.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PrintBenchmark {
+    private static final int LINES_PER_TEST = 100;
+
+    private static final String LINE = "[INFO] some typical log line from a test, about eighty characters long";
+
+    @Param({"false","true"})
+    public boolean sharedBuffer;
+
+    private PrintStream base;
+    private ParallelPrintStream out;
+    private final Object sharedKey = new Object();
+
+    @State(Scope.Thread)
+    public static class Worker {
+        int lines;
+
+        @Setup(Level.Trial)
+        public void bind(PrintBenchmark b) {
+            ParallelPrintStream.bind(b.sharedBuffer ? b.sharedKey : this);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        base = new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        out = new ParallelPrintStream(base);
+    }
+
+    @Benchmark
+    public void println(Worker w) {
+        out.println(LINE);
+        if(++w.lines==LINES_PER_TEST) {
+            w.lines = 0;
+            out.detach().writeTo(base);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.kohsuke.junit;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestListener;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per-event cost of recording the events of a test and replaying them,
+ * with {@link MethodCallRecorder} and {@link TestListenerRecorder}.
+ *
+ * <p>
+ * Each operation records a typical failed test (startTest, addFailure, endTest),
+ * replays it, and clears the recorder.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RecorderBenchmark {
+    private static final Test TEST = new TestCase("test") {};
+    private static final AssertionFailedError FAILURE = new AssertionFailedError("failure");
+
+    private MethodCallRecorder proxyRecorder;
+    private TestListener proxy;
+    private TestListenerRecorder typedRecorder;
+    private TestListener sink;
+
+    @Setup
+    public void setUp(final Blackhole bh) {
+        proxyRecorder = new MethodCallRecorder(TestListener.class);
+        proxy = (TestListener)proxyRecorder.getProxy();
+        typedRecorder = new TestListenerRecorder();
+        sink = new TestListener() {
+            public void addError(Test test, Throwable t) {
+                bh.consume(t);
+            }
+
+            public void addFailure(Test test, AssertionFailedError t) {
+                bh.consume(t);
+            }
+
+            public void startTest(Test test) {
+                bh.consume(test);
+            }
+
+            public void endTest(Test test) {
+                bh.consume(test);
+            }
+        };
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(3)
+    public void proxy() throws Throwable {
+        proxy.startTest(TEST);
+        proxy.addFailure(TEST,FAILURE);
+        proxy.endTest(TEST);
+        proxyRecorder.replay(sink);
+        proxyRecorder.clear();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(3)
+    public void typed() {
+        typedRecorder.startTest(TEST);
+        typedRecorder.addFailure(TEST,FAILURE);
+        typedRecorder.endTest(TEST);
+        typedRecorder.replay(sink);
+        typedRecorder.clear();
+    }
+}
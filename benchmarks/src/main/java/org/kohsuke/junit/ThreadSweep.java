@@ -0,0 +1,28 @@
+package org.kohsuke.junit;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks that involve contention with 1, 2, 4, ... 64 threads.
+ *
+ * <p>
+ * JMH runs a benchmark with a fixed number of threads, so this just runs them
+ * once for each thread count. The arguments, if any, are the regular expressions
+ * of the benchmarks to run.
+ */
+public class ThreadSweep {
+    public static void main(String[] args) throws RunnerException {
+        if(args.length==0)
+            args = new String[] {MarshallerBenchmark.class.getSimpleName(), PrintBenchmark.class.getSimpleName()};
+
+        for( int n=1; n<=64; n*=2 ) {
+            ChainedOptionsBuilder o = new OptionsBuilder().threads(n);
+            for( String a : args )
+                o.include(a);
+            new Runner(o.build()).run();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.kohsuke.junit;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Grows and shrinks a pool of worker threads while tests are running.
+ *
+ * <p>
+ * Every so often, this class looks at how much CPU time the registered worker threads
+ * have used since the last sample. If the workers spend most of their time blocked
+ * (sleeping, waiting for I/O, etc.) while there are idle CPUs, the pool is asked to
+ * {@linkplain Pool#grow() add a worker}. If the workers are CPU-bound and outnumber
+ * the CPUs, or if the machine is overloaded, the pool is asked to
+ * {@linkplain Pool#shrink() retire one}.
+ *
+ * <p>
+ * This is turned on by the <tt>org.kohsuke.junit.adaptive</tt> system property.
+ */
+public final class AdaptiveThreadCount {
+    public static final String PROPERTY = "org.kohsuke.junit.adaptive";
+
+    /**
+     * Worker threads that this class can resize.
+     */
+    public interface Pool {
+        /**
+         * Current number of worker threads.
+         */
+        int size();
+
+        /**
+         * Adds one worker thread.
+         */
+        void grow();
+
+        /**
+         * Removes one worker thread, not necessarily right away.
+         */
+        void shrink();
+    }
+
+    private final Pool pool;
+    private final int min, max;
+    private final long interval;
+
+    /**
+     * Worker threads and their CPU time at the last sample.
+     */
+    private final Map<Thread,Long> workers = new ConcurrentHashMap<Thread,Long>();
+
+    private final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+
+    private long lastSample;
+
+    private volatile Thread sampler;
+
+    /**
+     * @param min
+     *      The pool will not be shrunk below this size.
+     * @param max
+     *      The pool will not be grown beyond this size.
+     * @param interval
+     *      Sampling interval in milliseconds.
+     */
+    public AdaptiveThreadCount(Pool pool, int min, int max, long interval) {
+        this.pool = pool;
+        this.min = min;
+        this.max = max;
+        this.interval = interval;
+    }
+
+    /**
+     * Creates an instance with the default limits: from 1 up to 4 threads per CPU, sampled every second.
+     */
+    public AdaptiveThreadCount(Pool pool, int initial) {
+        this(pool,1,Math.max(initial,ThreadCount.availableCpus()*4),1000);
+    }
+
+    /**
+     * Returns true if the adaptive mode is requested by the system property.
+     */
+    public static boolean isEnabledByDefault() {
+        return Boolean.getBoolean(PROPERTY);
+    }
+
+    /**
+     * Worker threads need to call this method when they start.
+     */
+    public void register(Thread t) {
+        workers.put(t,cpuTime(t));
+    }
+
+    /**
+     * Worker threads need to call this method when they exit.
+     */
+    public void unregister(Thread t) {
+        workers.remove(t);
+    }
+
+    public synchronized void start() {
+        if(sampler!=null)
+            return;
+        if(!mx.isThreadCpuTimeSupported())
+            return; // we can't tell what the workers are doing
+        if(!mx.isThreadCpuTimeEnabled())
+            mx.setThreadCpuTimeEnabled(true);
+
+        lastSample = System.nanoTime();
+        Thread t = new Thread("Parallel JUnit adaptive thread count") {
+            public void run() {
+                try {
+                    while(sampler==this) {
+                        Thread.sleep(interval);
+                        sample();
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        };
+        t.setDaemon(true);
+        sampler = t;
+        t.start();
+    }
+
+    public synchronized void stop() {
+        Thread t = sampler;
+        sampler = null;
+        if(t!=null)
+            t.interrupt();
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        long wall = now-lastSample;
+        lastSample = now;
+
+        long cpu = 0;
+        for( Iterator<Map.Entry<Thread,Long>> itr = workers.entrySet().iterator(); itr.hasNext(); ) {
+            Map.Entry<Thread,Long> e = itr.next();
+            long c = cpuTime(e.getKey());
+            if(c<0)
+                continue;   // thread died
+            cpu += Math.max(0,c-e.getValue());
+            e.setValue(c);
+        }
+
+        int size = pool.size();
+        if(size==0 || wall<=0)
+            return;
+
+        int cpus = ThreadCount.availableCpus();
+        double used = (double)cpu/wall;     // number of CPUs the workers kept busy
+        double busy = used/size;            // fraction of time an average worker was on CPU
+
+        double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        boolean overloaded = load > cpus*1.5;
+
+        if(size<max && !overloaded && busy<0.5 && used<cpus*0.8)
+            pool.grow();    // workers are mostly blocked, and there are idle CPUs
+        else if(size>min && (overloaded || (busy>0.9 && size>cpus)))
+            pool.shrink();  // more CPU-bound workers than the CPUs
+    }
+
+    private long cpuTime(Thread t) {
+        try {
+            return mx.getThreadCpuTime(t.getId());
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.kohsuke.junit;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link OutputStream} that keeps the data in memory up to a limit,
+ * and then spills everything to a temporary file.
+ *
+ * <p>
+ * If the temporary file can't be created, the data keeps accumulating
+ * in memory, which is no worse than not having the limit at all.
+ */
+final class CaptureBuffer extends OutputStream {
+    private final int memoryLimit;
+
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+    /**
+     * Non-null once we spilled to the disk.
+     */
+    private FileChannel file;
+    private OutputStream fileOut;
+
+    private boolean spillFailed;
+
+    /**
+     * @param memoryLimit
+     *      Maximum number of bytes kept in memory.
+     */
+    CaptureBuffer(int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    public synchronized void write(int b) throws IOException {
+        prepare(1).write(b);
+    }
+
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        prepare(len).write(b,off,len);
+    }
+
+    /**
+     * Determines where the next len bytes go.
+     */
+    private OutputStream prepare(int len) {
+        if(file==null && !spillFailed && memory.size()+len>memoryLimit)
+            spill();
+        return file!=null ? fileOut : memory;
+    }
+
+    private void spill() {
+        Path p = null;
+        FileChannel ch = null;
+        try {
+            p = Files.createTempFile("parallel-junit",".out");
+            ch = FileChannel.open(p,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            fileOut = new BufferedOutputStream(Channels.newOutputStream(ch));
+            memory.writeTo(fileOut);
+            memory = new ByteArrayOutputStream();   // release the memory
+            file = ch;
+        } catch (IOException e) {
+            spillFailed = true;
+            fileOut = null;
+            if(ch!=null) {
+                try {
+                    ch.close();
+                } catch (IOException x) {
+                    // the file is deleted below anyway
+                }
+            }
+            if(p!=null)
+                p.toFile().delete();
+        }
+    }
+
+    /**
+     * Takes away everything written so far, and resets this buffer to the empty state.
+     */
+    synchronized CapturedOutput detach() {
+        CapturedOutput r;
+        if(file!=null) {
+            try {
+                fileOut.flush();
+            } catch (IOException e) {
+                // whatever made it to the disk will be still sent
+            }
+            r = new CapturedOutput(file);
+            file = null;
+            fileOut = null;
+        } else {
+            r = new CapturedOutput(memory.toByteArray());
+            memory.reset();
+        }
+        spillFailed = false;
+        return r;
+    }
+}
@@ -0,0 +1,82 @@
+package org.kohsuke.junit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Output captured from a test, either in memory or in a temporary file.
+ *
+ * @see CaptureBuffer#detach()
+ */
+public final class CapturedOutput {
+    private final byte[] data;
+    private final FileChannel file;
+
+    CapturedOutput(byte[] data) {
+        this.data = data;
+        this.file = null;
+    }
+
+    /**
+     * @param file
+     *      Opened with {@link java.nio.file.StandardOpenOption#DELETE_ON_CLOSE},
+     *      so that it goes away once written.
+     */
+    CapturedOutput(FileChannel file) {
+        this.data = null;
+        this.file = file;
+    }
+
+    /**
+     * Returns the number of bytes captured.
+     */
+    long size() throws IOException {
+        return file==null ? data.length : file.size();
+    }
+
+    /**
+     * Sends the captured output to the given stream.
+     *
+     * <p>
+     * This method can be only called once.
+     */
+    public void writeTo(PrintStream out) {
+        try {
+            sendTo(out);
+        } catch (IOException e) {
+            e.printStackTrace(out);
+        }
+    }
+
+    /**
+     * Sends the captured output to the given stream, and reports a failure to the caller.
+     *
+     * <p>
+     * This method can be only called once.
+     */
+    void sendTo(OutputStream out) throws IOException {
+        if(file==null) {
+            out.write(data,0,data.length);
+            return;
+        }
+
+        try {
+            // let the channel push the file content directly to the destination.
+            WritableByteChannel target = Channels.newChannel(out);
+            long size = file.size();
+            for( long pos=0; pos<size; )
+                pos += file.transferTo(pos,size-pos,target);
+            out.flush();
+        } finally {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
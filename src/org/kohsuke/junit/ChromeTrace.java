@@ -0,0 +1,143 @@
+package org.kohsuke.junit;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes the timeline of a run recorded in {@link RunMetrics} in the trace event format
+ * of Chrome, which can be opened in <tt>chrome://tracing</tt> or <a href="https://ui.perfetto.dev/">Perfetto</a>.
+ *
+ * <p>
+ * Each worker thread is shown as a lane, and each test as a span in it. The time a worker
+ * spent reporting a test (waiting for the {@link ThreadMarshaller},
+ * or buffering the events of a TestClass)
+ * is shown as a "report" span right after the test. Gaps between spans are the time the worker
+ * was idle or busy with the framework.
+ *
+ * <p>
+ * If the <tt>org.kohsuke.junit.trace</tt> system property is set to a directory, each run of
+ * {@link ParallelTestSuite} and {@code ParallelSuite} writes <tt><i>suite name</i>.trace.json</tt> there.
+ * If that file already exists, say because suites of the same name ran before, a number is added
+ * to the name, as in <tt><i>suite name</i>-2.trace.json</tt>, so that no trace is overwritten.
+ */
+public final class ChromeTrace {
+    public static final String PROPERTY = "org.kohsuke.junit.trace";
+
+    private ChromeTrace() {}
+
+    /**
+     * Returns the directory specified by the system property.
+     *
+     * @return
+     *      null if the system property isn't set.
+     */
+    static File getDefaultDirectory() {
+        String v = System.getProperty(PROPERTY);
+        if(v==null || v.length()==0)
+            return null;
+        return new File(v);
+    }
+
+    /**
+     * Writes the trace to a new file in the given directory, named after the suite.
+     * Failures are reported to stderr.
+     */
+    static void write(RunMetrics metrics, File dir) {
+        String name = metrics.getSuiteName().replaceAll("[^\\w.$-]","_");
+        File f = new File(dir,name+".trace.json");
+        try {
+            dir.mkdirs();
+            for( int i=2; !f.createNewFile(); i++ )
+                f = new File(dir,name+"-"+i+".trace.json");
+            Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f),"UTF-8"));
+            try {
+                write(metrics,w);
+            } finally {
+                w.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write the trace to "+f+": "+e);
+        }
+    }
+
+    /**
+     * Writes the trace as JSON.
+     */
+    public static void write(RunMetrics metrics, Writer w) throws IOException {
+        w.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+        w.write("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"args\":{\"name\":");
+        string(w,metrics.getSuiteName());
+        w.write("}}");
+
+        // one lane per worker, in the order they started
+        Map<String,Integer> lanes = new HashMap<String,Integer>();
+        List<RunMetrics.WorkerMetrics> workers = metrics.getWorkers();
+        for( RunMetrics.WorkerMetrics wm : workers ) {
+            if(lanes.containsKey(wm.getName()))
+                continue;
+            int tid = lanes.size();
+            lanes.put(wm.getName(),tid);
+            w.write(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":"+tid+",\"args\":{\"name\":");
+            string(w,wm.getName());
+            w.write("}}");
+        }
+
+        for( RunMetrics.TestMetrics t : metrics.getTests() ) {
+            Integer tid = lanes.get(t.getWorker());
+            if(tid==null) {
+                tid = lanes.size();
+                lanes.put(t.getWorker(),tid);
+            }
+            long end = t.getStartTime()+t.getRunTime();
+            w.write(",\n{\"name\":");
+            string(w,t.getName());
+            w.write(",\"cat\":\"test\",\"ph\":\"X\",\"pid\":1,\"tid\":"+tid
+                +",\"ts\":"+micros(t.getStartTime())+",\"dur\":"+micros(t.getRunTime())
+                +",\"args\":{\"queue wait (ms)\":"+millis(t.getQueueWait())+"}}");
+            if(t.getReportLatency()>0)
+                w.write(",\n{\"name\":\"report\",\"cat\":\"report\",\"ph\":\"X\",\"pid\":1,\"tid\":"+tid
+                    +",\"ts\":"+micros(end)+",\"dur\":"+micros(t.getReportLatency())+"}");
+        }
+        w.write("\n]}\n");
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT,"%.3f",nanos/1000.0);
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT,"%.3f",nanos/1000000.0);
+    }
+
+    private static void string(Writer w, String s) throws IOException {
+        w.write('"');
+        for( int i=0; i<s.length(); i++ ) {
+            char ch = s.charAt(i);
+            switch(ch) {
+            case '"':
+                w.write("\\\"");
+                break;
+            case '\\':
+                w.write("\\\\");
+                break;
+            case '\n':
+                w.write("\\n");
+                break;
+            default:
+                if(ch<0x20)
+                    w.write(String.format("\\u%04x",(int)ch));
+                else
+                    w.write(ch);
+            }
+        }
+        w.write('"');
+    }
+}
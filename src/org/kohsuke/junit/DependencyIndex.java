@@ -0,0 +1,568 @@
+package org.kohsuke.junit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Knows which classes each class depends on, so that only the tests affected by
+ * the changes since they last passed need to be run.
+ *
+ * <p>
+ * When the <tt>org.kohsuke.junit.dependencyIndex</tt> system property is set to a file name,
+ * {@link ParallelTestSuite} and {@code ParallelSuite} look at the class files in the
+ * directories of the class path. The constant pool of a class file lists the classes it
+ * refers to, so following those references from a test class gives all the classes it
+ * could possibly run. The suites skip a test if none of those classes changed since the
+ * last time the test passed, and record the tests that pass.
+ *
+ * <p>
+ * The file remembers the hash and the references of each class file, so that only the
+ * class files that changed are read again, and the hash of the classes each test class
+ * depended on when it last passed.
+ *
+ * <p>
+ * This is conservative where it can't see the dependencies: a change to a jar file or to
+ * a resource in the class path affects every test, and so does a test class that isn't
+ * in a directory. Classes that are only referred to by their names in string constants
+ * are picked up, but a change to a compile-time constant is only seen in the class that
+ * declares it, because the compiler copies the value into the classes that use it.
+ */
+public final class DependencyIndex {
+    public static final String PROPERTY = "org.kohsuke.junit.dependencyIndex";
+
+    private static final String FILE_PREFIX = "file:";
+    private static final String PASSED_PREFIX = "passed:";
+
+    /**
+     * Picks up the class names in descriptors and signatures, like "Lorg/acme/Foo;".
+     */
+    private static final Pattern DESCRIPTOR = Pattern.compile("L([^;<>()\\[]+)[;<]");
+
+    /**
+     * Index used by the current run.
+     */
+    private static DependencyIndex active;
+
+    private final File file;
+
+    /**
+     * A file in the class path, as of this run.
+     */
+    private static final class Entry {
+        final long size;
+        final long modified;
+        final String hash;
+        /**
+         * For a class file, the names of the other classes it refers to.
+         */
+        final Set<String> refs;
+
+        Entry(long size, long modified, String hash, Set<String> refs) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.refs = refs;
+        }
+    }
+
+    /**
+     * Entries from the last run, by the absolute path of the file.
+     */
+    private final Map<String,Entry> saved = new HashMap<String,Entry>();
+
+    /**
+     * Entries of this run, by the absolute path of the file.
+     */
+    private final Map<String,Entry> files = new TreeMap<String,Entry>();
+
+    /**
+     * Entries of the class files, by the class name.
+     * A class that appears more than once in the class path is the first one.
+     */
+    private final Map<String,Entry> classes = new HashMap<String,Entry>();
+
+    /**
+     * Hash of the jar files and the resources, which every test depends on.
+     */
+    private String global;
+
+    /**
+     * Hash of the classes each test class depended on when it last passed.
+     */
+    private final Map<String,String> passed = new HashMap<String,String>();
+
+    /**
+     * Outcome of the test classes run so far: true if they passed.
+     */
+    private final Map<String,Boolean> outcomes = new HashMap<String,Boolean>();
+
+    private final Map<String,String> fingerprints = new HashMap<String,String>();
+
+    /**
+     * Loads the index from the given file, if it exists, and brings it up to date
+     * with the given class path.
+     */
+    public DependencyIndex(File file, List<File> classpath) throws IOException {
+        this.file = file;
+        load();
+
+        Set<File> entries = new LinkedHashSet<File>();
+        for( File f : classpath )
+            expand(f.getAbsoluteFile(),entries);
+        for( File f : entries ) {
+            if(f.isDirectory())
+                scanDirectory(f,"");
+            else
+                update(f,null);
+        }
+
+        // only keep the references to the classes we know of
+        for( Entry e : files.values() )
+            if(e.refs!=null)
+                e.refs.retainAll(classes.keySet());
+
+        MessageDigest md = newDigest();
+        for( Map.Entry<String,Entry> e : files.entrySet() )
+            if(e.getValue().refs==null)
+                md.update((e.getKey()+' '+e.getValue().hash+'\n').getBytes("UTF-8"));
+        global = toHex(md.digest());
+    }
+
+    /**
+     * Returns the index specified by the system property, built from the class path of this JVM.
+     *
+     * @return
+     *      null if the system property isn't set or the index can't be built.
+     */
+    public static DependencyIndex getDefault() {
+        String f = System.getProperty(PROPERTY);
+        if(f==null || f.length()==0)
+            return null;
+        return forClassPath(new File(f));
+    }
+
+    /**
+     * Builds the index of the class path of this JVM.
+     *
+     * @return
+     *      null if the index can't be built.
+     */
+    static DependencyIndex forClassPath(File file) {
+        List<File> classpath = new ArrayList<File>();
+        for( String e : System.getProperty("java.class.path").split(File.pathSeparator) )
+            if(e.length()>0)
+                classpath.add(new File(e));
+        try {
+            return new DependencyIndex(file,classpath);
+        } catch (IOException e) {
+            System.err.println("Failed to build the dependency index; running all the tests: "+e);
+            return null;
+        }
+    }
+
+    /**
+     * Called by a suite when it starts running.
+     *
+     * @return
+     *      The index, if the caller is the outermost suite and the system property is set.
+     *      The caller then needs to call {@link #end()} once it's done. Otherwise null.
+     */
+    public static synchronized DependencyIndex begin() {
+        if(active!=null)
+            return null;
+        active = getDefault();
+        return active;
+    }
+
+    /**
+     * Returns the index used by the current run, for the suites nested in the outermost one.
+     *
+     * @return
+     *      null if the tests aren't selected by their dependencies.
+     */
+    public static synchronized DependencyIndex getActive() {
+        return active;
+    }
+
+    /**
+     * Called by the outermost suite when it's done. Writes the index back to the file.
+     */
+    public void end() {
+        try {
+            save();
+        } finally {
+            synchronized (DependencyIndex.class) {
+                if(active==this)
+                    active = null;
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Computes the hash of a class and all the classes it depends on, directly or indirectly,
+     * as well as the jar files and the resources.
+     *
+     * @return
+     *      null if the class isn't in a directory of the class path.
+     */
+    public synchronized String fingerprint(String className) {
+        if(!classes.containsKey(className))
+            return null;
+        String fp = fingerprints.get(className);
+        if(fp!=null)
+            return fp;
+
+        Set<String> closure = new TreeSet<String>();
+        List<String> todo = new ArrayList<String>();
+        todo.add(className);
+        while(!todo.isEmpty()) {
+            String c = todo.remove(todo.size()-1);
+            if(closure.add(c))
+                todo.addAll(classes.get(c).refs);
+        }
+
+        try {
+            MessageDigest md = newDigest();
+            md.update(global.getBytes("UTF-8"));
+            for( String c : closure )
+                md.update((c+' '+classes.get(c).hash+'\n').getBytes("UTF-8"));
+            fp = toHex(md.digest());
+        } catch (IOException e) {
+            throw new AssertionError(e); // UTF-8 is always there
+        }
+        fingerprints.put(className,fp);
+        return fp;
+    }
+
+    /**
+     * Returns true if any of the given classes changed since the test that uses them
+     * last passed.
+     *
+     * @param testClasses
+     *      null if it's not known which classes a test uses, in which case it's always affected.
+     */
+    public synchronized boolean isAffected(Collection<String> testClasses) {
+        if(testClasses==null)
+            return true;
+        for( String c : testClasses ) {
+            String fp = fingerprint(c);
+            if(fp==null || !fp.equals(passed.get(c)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Picks the tests that are affected by the changes.
+     *
+     * @param testClasses
+     *      Classes of the tests, in the same order. See {@link #isAffected(Collection)}.
+     */
+    public <T> List<T> select(List<T> tests, List<? extends Collection<String>> testClasses) {
+        List<T> r = new ArrayList<T>();
+        for( int i=0; i<tests.size(); i++ )
+            if(isAffected(testClasses.get(i)))
+                r.add(tests.get(i));
+        if(r.size()<tests.size())
+            System.err.println("Running "+r.size()+" of "+tests.size()+" tests affected by the changes since they last passed");
+        return r;
+    }
+
+    /**
+     * Records the outcome of a test. A test class counts as passed only if
+     * none of its tests failed in this run.
+     */
+    public synchronized void record(Collection<String> testClasses, boolean failed) {
+        for( String c : testClasses ) {
+            if(failed)
+                outcomes.put(c,false);
+            else if(!outcomes.containsKey(c))
+                outcomes.put(c,true);
+        }
+    }
+
+    /**
+     * Adds the entries of the Class-Path attribute of jar files, which is how
+     * a long class path is often passed to a test JVM.
+     */
+    private void expand(File f, Set<File> entries) {
+        if(!entries.add(f) || !f.isFile())
+            return;
+        try {
+            JarFile jar = new JarFile(f);
+            try {
+                Manifest m = jar.getManifest();
+                String cp = m!=null ? m.getMainAttributes().getValue(Attributes.Name.CLASS_PATH) : null;
+                if(cp==null)
+                    return;
+                for( String e : cp.trim().split("\\s+") ) {
+                    if(e.length()==0)
+                        continue;
+                    try {
+                        URI u = f.toURI().resolve(e);
+                        if("file".equals(u.getScheme()))
+                            expand(new File(u).getAbsoluteFile(),entries);
+                    } catch (IllegalArgumentException x) {
+                        // not a file
+                    }
+                }
+            } finally {
+                jar.close();
+            }
+        } catch (IOException e) {
+            // not a jar file. it'll be hashed as is
+        }
+    }
+
+    private void scanDirectory(File dir, String pkg) throws IOException {
+        File[] children = dir.listFiles();
+        if(children==null)
+            return;
+        for( File f : children ) {
+            if(f.isDirectory())
+                scanDirectory(f,pkg+f.getName()+'.');
+            else if(f.getName().endsWith(".class"))
+                update(f,pkg+f.getName().substring(0,f.getName().length()-6));
+            else
+                update(f,null);
+        }
+    }
+
+    /**
+     * Brings the entry of a file up to date, reading it only if it has changed.
+     *
+     * @param className
+     *      null if the file isn't a class file.
+     */
+    private void update(File f, String className) throws IOException {
+        if(className!=null && classes.containsKey(className))
+            return; // hidden by another class file
+        String path = f.getPath();
+        Entry e = saved.get(path);
+        if(e==null || e.size!=f.length() || e.modified!=f.lastModified() || (e.refs!=null)!=(className!=null)) {
+            byte[] data = read(f);
+            Set<String> refs = null;
+            if(className!=null) {
+                try {
+                    refs = scan(data);
+                } catch (IOException x) {
+                    throw new IOException("Failed to parse "+f+": "+x.getMessage());
+                }
+            }
+            e = new Entry(f.length(),f.lastModified(),toHex(newDigest().digest(data)),refs);
+        } else if(e.refs!=null) {
+            e = new Entry(e.size,e.modified,e.hash,new HashSet<String>(e.refs));
+        }
+        files.put(path,e);
+        if(className!=null)
+            classes.put(className,e);
+    }
+
+    /**
+     * Lists the class names that appear in the constant pool of a class file.
+     * This over-approximates the references, but the names that aren't classes are thrown away later.
+     */
+    static Set<String> scan(byte[] classFile) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+        if(in.readInt()!=0xCAFEBABE)
+            throw new IOException("Not a class file");
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+
+        Set<String> names = new HashSet<String>();
+        int n = in.readUnsignedShort();
+        for( int i=1; i<n; i++ ) {
+            int tag = in.readUnsignedByte();
+            switch(tag) {
+            case 1: // Utf8, which has the names of classes, descriptors, signatures and string literals
+                String s = in.readUTF();
+                names.add(s.replace('/','.'));
+                Matcher m = DESCRIPTOR.matcher(s);
+                while(m.find())
+                    names.add(m.group(1).replace('/','.'));
+                break;
+            case 7: // Class
+            case 8: // String
+            case 16: // MethodType
+            case 19: // Module
+            case 20: // Package
+                in.skipBytes(2);
+                break;
+            case 15: // MethodHandle
+                in.skipBytes(3);
+                break;
+            case 3: // Integer
+            case 4: // Float
+            case 9: // Fieldref
+            case 10: // Methodref
+            case 11: // InterfaceMethodref
+            case 12: // NameAndType
+            case 17: // Dynamic
+            case 18: // InvokeDynamic
+                in.skipBytes(4);
+                break;
+            case 5: // Long
+            case 6: // Double
+                in.skipBytes(8);
+                i++; // takes two slots
+                break;
+            default:
+                throw new IOException("Unknown constant pool tag "+tag);
+            }
+        }
+        return names;
+    }
+
+    private static byte[] read(File f) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream((int)f.length());
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while((len=in.read(buf))>0)
+                baos.write(buf,0,len);
+        } finally {
+            in.close();
+        }
+        return baos.toByteArray();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // every JRE has SHA-1
+        }
+    }
+
+    private static String toHex(byte[] data) {
+        StringBuilder buf = new StringBuilder(data.length*2);
+        for( byte b : data )
+            buf.append(Character.forDigit((b>>4)&15,16)).append(Character.forDigit(b&15,16));
+        return buf.toString();
+    }
+
+    private void load() {
+        if(!file.exists())
+            return;
+        Properties props = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to load the dependency index from "+file+": "+e);
+            return;
+        }
+
+        // a file is "<size> <last modified> <hash>", followed by "class" and the referenced classes for a class file
+        for( String key : props.stringPropertyNames() ) {
+            String value = props.getProperty(key).trim();
+            if(key.startsWith(PASSED_PREFIX)) {
+                passed.put(key.substring(PASSED_PREFIX.length()),value);
+            } else if(key.startsWith(FILE_PREFIX)) {
+                String[] tokens = value.split("\\s+");
+                if(tokens.length<3)
+                    continue;
+                try {
+                    Set<String> refs = null;
+                    if(tokens.length>3 && tokens[3].equals("class")) {
+                        refs = new HashSet<String>();
+                        for( int i=4; i<tokens.length; i++ )
+                            refs.add(tokens[i]);
+                    }
+                    saved.put(key.substring(FILE_PREFIX.length()),
+                        new Entry(Long.parseLong(tokens[0]),Long.parseLong(tokens[1]),tokens[2],refs));
+                } catch (NumberFormatException e) {
+                    // ignore a corrupted entry
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the index back to the file, after recording the hash of the test classes that passed.
+     *
+     * <p>
+     * The file is replaced atomically, so a reader never sees a half-written file.
+     */
+    public synchronized void save() {
+        for( Map.Entry<String,Boolean> e : outcomes.entrySet() ) {
+            String fp = fingerprint(e.getKey());
+            if(e.getValue() && fp!=null)
+                passed.put(e.getKey(),fp);
+            else
+                passed.remove(e.getKey());
+        }
+        outcomes.clear();
+
+        Properties props = new Properties();
+        for( Map.Entry<String,Entry> e : files.entrySet() ) {
+            Entry v = e.getValue();
+            StringBuilder buf = new StringBuilder();
+            buf.append(v.size).append(' ').append(v.modified).append(' ').append(v.hash);
+            if(v.refs!=null) {
+                buf.append(" class");
+                for( String r : new TreeSet<String>(v.refs) )
+                    buf.append(' ').append(r);
+            }
+            props.setProperty(FILE_PREFIX+e.getKey(),buf.toString());
+        }
+        for( Map.Entry<String,String> e : passed.entrySet() )
+            if(classes.containsKey(e.getKey()))
+                props.setProperty(PASSED_PREFIX+e.getKey(),e.getValue());
+
+        try {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if(dir!=null)
+                dir.mkdirs();
+            File tmp = File.createTempFile(file.getName(),".tmp",dir);
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                props.store(out,"parallel-junit dependency index");
+            } finally {
+                out.close();
+            }
+            if(!tmp.renameTo(file)) {
+                file.delete();
+                if(!tmp.renameTo(file))
+                    throw new IOException("Failed to rename "+tmp+" to "+file);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to save the dependency index to "+file+": "+e);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.kohsuke.junit;
+
+/**
+ * Settings of the fail-fast mode of {@link ParallelTestSuite} and {@code ParallelSuite}.
+ *
+ * <p>
+ * In this mode, a run is cancelled once a given number of tests have failed:
+ * tests that haven't started are skipped, and the threads running tests are
+ * interrupted. Failures of the interrupted tests are most likely caused by the
+ * interruption, so they aren't reported as failures or recorded in the {@link TestHistory}.
+ * This is turned on by the <tt>org.kohsuke.junit.failFast</tt>
+ * system property, whose value is the number of failures to stop at
+ * ("true" means 1).
+ */
+public final class FailFast {
+    public static final String PROPERTY = "org.kohsuke.junit.failFast";
+
+    private FailFast() {}
+
+    /**
+     * Returns the number of failures requested by the system property.
+     *
+     * @return
+     *      0 if the fail-fast mode isn't requested.
+     */
+    public static int defaultThreshold() {
+        String v = System.getProperty(PROPERTY);
+        if(v==null || v.equals("false"))
+            return 0;
+        if(v.equals("true") || v.length()==0)
+            return 1;
+        try {
+            return Math.max(0,Integer.parseInt(v));
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring malformed "+PROPERTY+"="+v);
+            return 0;
+        }
+    }
+}
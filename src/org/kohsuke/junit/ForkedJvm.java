@@ -0,0 +1,304 @@
+package org.kohsuke.junit;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.lang.reflect.Modifier;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.kohsuke.junit.ParallelTestSuite.CompletedTest;
+
+/**
+ * A child JVM that runs {@link TestCase}s for a worker of {@link ParallelTestSuite}
+ * in the fork mode.
+ *
+ * <p>
+ * The JVM is started when the first test is run, and reused for the following tests.
+ * If it dies, say because a test called {@link System#exit(int)}, the test is reported
+ * as an error and a new JVM is started for the next test.
+ *
+ * <p>
+ * The fork mode is turned on by the <tt>org.kohsuke.junit.forks</tt> system property,
+ * whose value is the number of child JVMs. Additional JVM options can be given by the
+ * <tt>org.kohsuke.junit.forkArgs</tt> system property, separated by whitespace.
+ *
+ * @see ForkedTestRunner
+ */
+final class ForkedJvm {
+    static final String PROPERTY = "org.kohsuke.junit.forks";
+    static final String ARGS_PROPERTY = "org.kohsuke.junit.forkArgs";
+
+    /**
+     * How long to wait for a new JVM to connect back.
+     */
+    private static final int CONNECT_TIMEOUT = 60*1000;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final List<String> jvmArgs;
+    private final int memoryLimit;
+
+    private Process process;
+    private Socket socket;
+    /**
+     * Non-null while waiting for a new JVM to connect back, so that {@link #destroy()} can abort it.
+     */
+    private ServerSocket connecting;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    ForkedJvm(List<String> jvmArgs, int memoryLimit) {
+        this.jvmArgs = jvmArgs;
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Gets the JVM options specified by the system property.
+     */
+    static List<String> defaultJvmArgs() {
+        String v = System.getProperty(ARGS_PROPERTY);
+        if(v==null || v.trim().length()==0)
+            return new ArrayList<String>();
+        return new ArrayList<String>(Arrays.asList(v.trim().split("\\s+")));
+    }
+
+    /**
+     * Returns true if the given test can be recreated in a child JVM from its class and name.
+     */
+    static boolean canFork(Test t) {
+        if(!(t instanceof TestCase) || ((TestCase)t).getName()==null)
+            return false;
+        Class<?> c = t.getClass();
+        if(!Modifier.isPublic(c.getModifiers()) || c.isAnonymousClass() || c.isLocalClass())
+            return false;
+        if(c.isMemberClass() && !Modifier.isStatic(c.getModifiers()))
+            return false;
+        try {
+            TestSuite.getTestConstructor(c);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts the JVM. The monitor isn't held while waiting for it, so it can be destroyed meanwhile.
+     */
+    private void start() throws IOException {
+        ServerSocket ss = new ServerSocket(0,1,InetAddress.getLoopbackAddress());
+        try {
+            ss.setSoTimeout(CONNECT_TIMEOUT);
+            String token = Long.toHexString(random.nextLong());
+
+            List<String> cmd = new ArrayList<String>();
+            cmd.add(new File(new File(System.getProperty("java.home"),"bin"),"java").getPath());
+            cmd.addAll(jvmArgs);
+            cmd.add("-cp");
+            cmd.add(System.getProperty("java.class.path"));
+            cmd.add(ForkedTestRunner.class.getName());
+            cmd.add(String.valueOf(ss.getLocalPort()));
+            cmd.add(token);
+            cmd.add(String.valueOf(memoryLimit));
+            Process p = new ProcessBuilder(cmd).inheritIO().start();
+            synchronized (this) {
+                process = p;
+                connecting = ss;
+            }
+
+            // destroy() closes the server socket to abort this
+            Socket s = ss.accept();
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            if(!token.equals(in.readUTF())) {
+                s.close();
+                throw new IOException("Unexpected connection to the forked JVM port");
+            }
+            synchronized (this) {
+                if(process!=p) {
+                    s.close();
+                    throw new IOException("Forked JVM was killed while starting");
+                }
+                socket = s;
+                this.in = in;
+                this.out = out;
+            }
+        } catch (IOException e) {
+            destroy();
+            throw e;
+        } finally {
+            synchronized (this) {
+                if(connecting==ss)
+                    connecting = null;
+            }
+            ss.close();
+        }
+    }
+
+    /**
+     * Runs a test in the child JVM.
+     *
+     * @throws IOException
+     *      if the child JVM died. It's restarted for the next test.
+     */
+    CompletedTest run(TestCase t) throws IOException {
+        boolean started;
+        synchronized (this) {
+            started = process!=null;
+        }
+        if(!started)
+            start();
+
+        DataInputStream in;
+        synchronized (this) {
+            if(process==null)
+                throw new IOException("Forked JVM was killed");
+            in = this.in;
+            out.writeByte(ForkedTestRunner.RUN);
+            out.writeUTF(t.getClass().getName());
+            out.writeUTF(t.getName());
+            out.flush();
+        }
+
+        try {
+            TestListenerRecorder events = new TestListenerRecorder();
+            int n = in.readInt();
+            for( int i=0; i<n; i++ ) {
+                byte kind = in.readByte();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                Throwable th = deserialize(kind,data);
+                if(kind==ForkedTestRunner.ADD_FAILURE)
+                    events.addFailure(t,(AssertionFailedError)th);
+                else
+                    events.addError(t,th);
+            }
+            long duration = in.readLong();
+            CapturedOutput o = receiveOutput(in);
+            CapturedOutput e = receiveOutput(in);
+            return new CompletedTest(t,events,o,e,duration);
+        } catch (IOException e) {
+            destroy();
+            throw e;
+        }
+    }
+
+    private CapturedOutput receiveOutput(DataInputStream in) throws IOException {
+        CaptureBuffer buf = new CaptureBuffer(memoryLimit);
+        byte[] chunk = new byte[8192];
+        for( long size=in.readLong(); size>0; ) {
+            int len = in.read(chunk,0,(int)Math.min(chunk.length,size));
+            if(len<0)
+                throw new IOException("Forked JVM closed the connection");
+            buf.write(chunk,0,len);
+            size -= len;
+        }
+        return buf.detach();
+    }
+
+    private Throwable deserialize(byte kind, byte[] data) {
+        try {
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data)) {
+                protected Class<?> resolveClass(java.io.ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                    try {
+                        return Class.forName(desc.getName(),false,Thread.currentThread().getContextClassLoader());
+                    } catch (ClassNotFoundException e) {
+                        return super.resolveClass(desc);
+                    }
+                }
+            };
+            Object o = ois.readObject();
+            if(kind!=ForkedTestRunner.ADD_FAILURE || o instanceof AssertionFailedError)
+                return (Throwable)o;
+            return new AssertionFailedError(o.toString());
+        } catch (IOException e) {
+            return unreadable(kind,e);
+        } catch (ClassNotFoundException e) {
+            return unreadable(kind,e);
+        }
+    }
+
+    private static Throwable unreadable(byte kind, Exception cause) {
+        String msg = "Failed to read the exception from the forked JVM: "+cause;
+        return kind==ForkedTestRunner.ADD_FAILURE ? new AssertionFailedError(msg) : new IOException(msg,cause);
+    }
+
+    /**
+     * Creates the report of a test that was running when the child JVM died.
+     */
+    static CompletedTest crashed(Test t, IOException cause) {
+        TestListenerRecorder events = new TestListenerRecorder();
+        events.addError(t,new IOException("Forked JVM died while running "+t,cause));
+        return new CompletedTest(t,events,new CapturedOutput(new byte[0]),new CapturedOutput(new byte[0]),0);
+    }
+
+    /**
+     * Asks the child JVM to exit.
+     */
+    void close() {
+        Process p;
+        DataOutputStream out;
+        synchronized (this) {
+            p = process;
+            out = this.out;
+        }
+        if(p==null)
+            return;
+        try {
+            // the monitor isn't held while waiting, so destroy() can still kill it
+            out.writeByte(ForkedTestRunner.EXIT);
+            out.flush();
+            if(!p.waitFor(10,TimeUnit.SECONDS))
+                p.destroy();
+        } catch (IOException e) {
+            // already dead
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        destroy();
+    }
+
+    /**
+     * Kills the child JVM. A test that's running in it gets an {@link IOException}.
+     */
+    void destroy() {
+        Process p;
+        Socket s;
+        ServerSocket ss;
+        synchronized (this) {
+            p = process;
+            s = socket;
+            ss = connecting;
+            process = null;
+            socket = null;
+            connecting = null;
+        }
+        if(p!=null)
+            p.destroy();
+        try {
+            if(s!=null)
+                s.close();
+            if(ss!=null)
+                ss.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.kohsuke.junit;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestResult;
+import junit.framework.TestSuite;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Entry point of a child JVM started by {@link ForkedJvm}.
+ *
+ * <p>
+ * Connects back to the parent, then runs the tests it's told to run one at a time,
+ * and sends back the failures and the output of each.
+ *
+ * <p>
+ * The protocol is a sequence of {@link DataOutputStream} records over a loopback socket:
+ * <pre>
+ * child  -> parent: token (UTF)
+ * parent -> child : RUN, class name (UTF), test name (UTF)
+ * child  -> parent: number of failures (int), { kind (byte), serialized Throwable (int + bytes) }*,
+ *                  duration in ms (long), stdout (long + bytes), stderr (long + bytes)
+ * ...
+ * parent -> child : EXIT
+ * </pre>
+ */
+public final class ForkedTestRunner {
+    static final byte RUN = 1;
+    static final byte EXIT = 2;
+
+    static final byte ADD_ERROR = 0;
+    static final byte ADD_FAILURE = 1;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private final CaptureBuffer stdout, stderr;
+    private final PrintStream stdoutStream, stderrStream;
+
+    private ForkedTestRunner(Socket s, int memoryLimit) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        stdout = new CaptureBuffer(memoryLimit);
+        stderr = new CaptureBuffer(memoryLimit);
+        stdoutStream = new PrintStream(stdout,true);
+        stderrStream = new PrintStream(stderr,true);
+    }
+
+    /**
+     * @param args
+     *      The port to connect to, the token to identify ourselves,
+     *      and the number of bytes of output to keep in memory.
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length!=3) {
+            System.err.println("Usage: java "+ForkedTestRunner.class.getName()+" PORT TOKEN MEMORYLIMIT");
+            System.exit(2);
+        }
+
+        Socket s = new Socket(InetAddress.getLoopbackAddress(),Integer.parseInt(args[0]));
+        s.setTcpNoDelay(true);
+        ForkedTestRunner r = new ForkedTestRunner(s,Integer.parseInt(args[2]));
+        r.out.writeUTF(args[1]);
+        r.out.flush();
+
+        System.setOut(r.stdoutStream);
+        System.setErr(r.stderrStream);
+        try {
+            r.run();
+        } catch (EOFException e) {
+            // the parent went away
+        }
+        // don't let threads left behind by tests keep us alive
+        System.exit(0);
+    }
+
+    private void run() throws IOException {
+        while(in.readByte()==RUN) {
+            String className = in.readUTF();
+            String name = in.readUTF();
+            runTest(className,name);
+        }
+    }
+
+    private void runTest(String className, String name) throws IOException {
+        Test t;
+        try {
+            Class<?> c = Class.forName(className,true,Thread.currentThread().getContextClassLoader());
+            t = TestSuite.createTest(c,name);
+        } catch (ClassNotFoundException e) {
+            t = TestSuite.warning("Class "+className+" not found in the forked JVM");
+        }
+
+        final List<Object> failures = new ArrayList<Object>();
+        TestResult result = new TestResult() {
+            public synchronized void addError(Test test, Throwable t) {
+                super.addError(test,t);
+                failures.add(ADD_ERROR);
+                failures.add(t);
+            }
+
+            public synchronized void addFailure(Test test, AssertionFailedError t) {
+                super.addFailure(test,t);
+                failures.add(ADD_FAILURE);
+                failures.add(t);
+            }
+        };
+
+        long start = System.nanoTime();
+        t.run(result);
+        long duration = (System.nanoTime()-start)/1000000;
+
+        stdoutStream.flush();
+        stderrStream.flush();
+        CapturedOutput o = stdout.detach();
+        CapturedOutput e = stderr.detach();
+
+        synchronized (result) {
+            out.writeInt(failures.size()/2);
+            for( int i=0; i<failures.size(); i+=2 ) {
+                byte kind = (Byte)failures.get(i);
+                out.writeByte(kind);
+                byte[] data = serialize(kind,(Throwable)failures.get(i+1));
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        }
+        out.writeLong(duration);
+        out.writeLong(o.size());
+        o.sendTo(out);
+        out.writeLong(e.size());
+        e.sendTo(out);
+        out.flush();
+    }
+
+    /**
+     * Serializes a {@link Throwable}, replacing it with a copy of its message and
+     * stack trace if it's not serializable.
+     */
+    private static byte[] serialize(byte kind, Throwable t) {
+        try {
+            return toBytes(t);
+        } catch (IOException e) {
+            Throwable copy = kind==ADD_FAILURE
+                ? new AssertionFailedError(t.toString())
+                : new RuntimeException(t.toString());
+            copy.setStackTrace(t.getStackTrace());
+            try {
+                return toBytes(copy);
+            } catch (IOException x) {
+                throw new Error(x); // can't happen
+            }
+        }
+    }
+
+    private static byte[] toBytes(Object o) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(o);
+        oos.close();
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,98 @@
+package org.kohsuke.junit;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+
+/**
+ * {@link OutputStream} that sends each complete line to the base stream
+ * in one write, prefixed by a tag.
+ *
+ * <p>
+ * Used by one thread, so it's not thread-safe. The base stream is shared,
+ * but since each line is written by a single call, lines from different threads
+ * never get mixed. A line longer than {@link #LINE_LIMIT} is broken up, so the memory
+ * this uses is bounded.
+ */
+final class LineStream extends OutputStream {
+    /**
+     * Maximum number of bytes buffered for a line.
+     */
+    static final int LINE_LIMIT = 8192;
+
+    private final PrintStream base;
+
+    /**
+     * Its {@code toString()} is the tag, which is evaluated for each line.
+     */
+    private final Object tag;
+
+    private byte[] buf = new byte[128];
+
+    private int len;
+
+    LineStream(PrintStream base, Object tag) {
+        this.base = base;
+        this.tag = tag;
+    }
+
+    public void write(int b) {
+        if(len==buf.length)
+            grow(len+1);
+        buf[len++] = (byte)b;
+        if(b=='\n' || len==LINE_LIMIT)
+            emit();
+    }
+
+    public void write(byte[] b, int off, int n) {
+        int end = off+n;
+        while(off<end) {
+            // copy up to the next newline or until the buffer is full
+            int i = off;
+            int max = Math.min(end,off+LINE_LIMIT-len);
+            while(i<max && b[i]!='\n')
+                i++;
+            boolean eol = i<max;
+            if(eol)
+                i++;
+            int chunk = i-off;
+            if(len+chunk>buf.length)
+                grow(len+chunk);
+            System.arraycopy(b,off,buf,len,chunk);
+            len += chunk;
+            off = i;
+            if(eol || len==LINE_LIMIT)
+                emit();
+        }
+    }
+
+    private void grow(int min) {
+        byte[] n = new byte[Math.min(LINE_LIMIT,Math.max(min,buf.length*2))];
+        System.arraycopy(buf,0,n,0,len);
+        buf = n;
+    }
+
+    /**
+     * Sends what's buffered so far as a line, if there's anything.
+     */
+    void endLine() {
+        if(len>0)
+            emit();
+    }
+
+    private void emit() {
+        byte[] prefix = ("["+tag+"] ").getBytes(Charset.defaultCharset());
+        boolean eol = buf[len-1]=='\n';
+        byte[] line = new byte[prefix.length+len+(eol?0:1)];
+        System.arraycopy(prefix,0,line,0,prefix.length);
+        System.arraycopy(buf,0,line,prefix.length,len);
+        if(!eol)
+            line[line.length-1] = '\n';
+        len = 0;
+        if(buf.length>1024)
+            buf = new byte[128];    // don't hold on to a long line
+
+        base.write(line,0,line.length);
+        base.flush();
+    }
+}
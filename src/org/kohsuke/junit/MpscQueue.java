@@ -0,0 +1,62 @@
+package org.kohsuke.junit;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free queue that allows any number of producer threads
+ * but only one consumer thread.
+ *
+ * <p>
+ * Producers append to the tail with a single atomic swap, and the consumer
+ * walks the linked list from the head without any synchronization. A producer
+ * links its node to the list right after the swap, so the consumer can momentarily
+ * see the queue as empty while an offer is in progress. Callers must therefore signal
+ * the consumer after {@link #offer(Object)} returns, not before.
+ */
+final class MpscQueue<E> {
+    private static final class Node<E> {
+        E value;
+        volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * The last node that's already consumed. Only touched by the consumer.
+     */
+    private Node<E> head;
+
+    private final AtomicReference<Node<E>> tail;
+
+    MpscQueue() {
+        head = new Node<E>(null);
+        tail = new AtomicReference<Node<E>>(head);
+    }
+
+    /**
+     * Adds an item to the queue. Can be called from any thread.
+     */
+    void offer(E e) {
+        if(e==null)
+            throw new IllegalArgumentException();
+        Node<E> n = new Node<E>(e);
+        tail.getAndSet(n).next = n;
+    }
+
+    /**
+     * Removes an item from the queue. Must be only called by the consumer thread.
+     *
+     * @return null if the queue is empty.
+     */
+    E poll() {
+        Node<E> next = head.next;
+        if(next==null)
+            return null;
+        E v = next.value;
+        next.value = null;  // let GC collect the item
+        head = next;
+        return v;
+    }
+}
@@ -1,74 +1,268 @@
 package org.kohsuke.junit;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * {@link PrintStream} that handles concurrent access from
  * multiple threads and avois screen clutter.
+ *
+ * <p>
+ * Output is captured per capture key (see {@link #bind(Object)}). Threads that don't
+ * have one write to the base stream directly.
+ *
+ * <p>
+ * In the streaming mode, nothing is captured. Instead, each complete line is written to the
+ * base stream as soon as it's printed, prefixed by <tt>[<i>key</i>]</tt>, where <i>key</i> is
+ * the {@code toString()} of the capture key. This lets long tests show their progress.
+ * The streaming mode is turned on by the <tt>org.kohsuke.junit.streamOutput</tt> system property.
  */
-class ParallelPrintStream extends PrintStream {
+public class ParallelPrintStream extends PrintStream {
+    /**
+     * Default number of bytes buffered in memory per thread group before spilling to a temporary file.
+     */
+    public static final int DEFAULT_MEMORY_LIMIT = Integer.getInteger(ParallelPrintStream.class.getName()+".memoryLimit",1024*1024);
+
+    public static final String STREAM_PROPERTY = "org.kohsuke.junit.streamOutput";
+
     private final PrintStream base;
 
+    private final int memoryLimit;
+
+    private final boolean streaming;
+
     public ParallelPrintStream(PrintStream out) {
+        this(out,DEFAULT_MEMORY_LIMIT);
+    }
+
+    /**
+     * @param memoryLimit
+     *      Number of bytes to buffer in memory for each thread group.
+     *      The output beyond this goes to a temporary file.
+     */
+    public ParallelPrintStream(PrintStream out, int memoryLimit) {
+        this(out,memoryLimit,false);
+    }
+
+    /**
+     * @param streaming
+     *      True to write out complete lines as they come, instead of capturing the output.
+     */
+    public ParallelPrintStream(PrintStream out, int memoryLimit, boolean streaming) {
         super(out);
         this.base =out;
+        this.memoryLimit = memoryLimit;
+        this.streaming = streaming;
+    }
+
+    public static boolean isStreamingByDefault() {
+        return Boolean.getBoolean(STREAM_PROPERTY);
+    }
+
+    public boolean isStreaming() {
+        return streaming;
     }
 
     private class Streams {
         private final PrintStream ps;
-        private final ByteArrayOutputStream baos;
+        private final CaptureBuffer buf;
+        /**
+         * Set once the output is taken away for good by {@link ParallelPrintStream#detach(Object)}.
+         */
+        private volatile boolean released;
 
         Streams() {
-            baos = new ByteArrayOutputStream();
-            ps = new PrintStream(baos);
+            buf = new CaptureBuffer(memoryLimit);
+            ps = new PrintStream(buf);
         }
 
-        void purge() {
-            try {
-                ps.flush();
-                baos.writeTo(base);
-                baos.reset();
-            } catch (IOException e) {
-                setError();
-            }
+        CapturedOutput detach() {
+            ps.flush();
+            return buf.detach();
         }
     }
 
     /**
-     * Maintain a buffer for each thread group.
+     * Identifies the buffer that the current thread should write to.
+     *
+     * <p>
+     * Inherited by the threads that tests start on their own, so that their output
+     * goes to the same place. Shared by all the instances, since a thread writes to
+     * System.out and System.err for the same test.
+     */
+    private static final InheritableThreadLocal<Object> captureKey = new InheritableThreadLocal<Object>();
+
+    /**
+     * Maintain a buffer for each capture key, which is normally a {@link WorkerThreadGroup}.
+     *
+     * <p>
+     * A thread looks up this map only when it writes for the first time,
+     * and from then on uses the buffer cached in {@link #local}.
+     */
+    private final ConcurrentMap<Object,Streams> buffer = new ConcurrentHashMap<Object,Streams>();
+
+    /**
+     * Where the current thread writes to, and the key it was looked up with.
      */
-    private final Map/*<WorkerThreadGroup,Streams>*/ buffer = Collections.synchronizedMap(new HashMap());
+    private final class Binding {
+        final Object key;
+        /**
+         * Null if the thread doesn't belong to any worker, or in the streaming mode.
+         */
+        final Streams streams;
+        /**
+         * Non-null in the streaming mode, if the thread belongs to a worker.
+         */
+        final LineStream line;
+        final PrintStream ps;
+
+        Binding(Object key) {
+            this.key = key;
+            if(streaming) {
+                Object k = key!=null ? key : workerGroup();
+                streams = null;
+                line = k!=null ? new LineStream(base,k) : null;
+                ps = line!=null ? new PrintStream(line) : base;
+            } else {
+                streams = lookup(key);
+                line = null;
+                ps = streams!=null ? streams.ps : base;
+            }
+        }
+
+        /**
+         * Sends the incomplete line, if any, in the streaming mode.
+         */
+        void endLine() {
+            if(line!=null) {
+                ps.flush();
+                line.endLine();
+            }
+        }
+    }
+
+    private final ThreadLocal<Binding> local = new ThreadLocal<Binding>();
 
     public PrintStream getBase() {
         return base;
     }
 
-    private Streams getStreams() {
+    /**
+     * Makes the output from the current thread and the threads it starts
+     * go to the buffer identified by the given key.
+     *
+     * <p>
+     * Threads that can't belong to a {@link WorkerThreadGroup}, such as virtual threads,
+     * need to call this method before they start running tests. So do threads that
+     * run tests of different buffers one after another, such as the threads of a pool.
+     *
+     * @param key
+     *      null to go back to the buffer of the thread group.
+     * @return
+     *      The key that was bound to the current thread.
+     */
+    public static Object bind(Object key) {
+        Object old = captureKey.get();
+        captureKey.set(key);
+        return old;
+    }
+
+    /**
+     * Returns the key bound to the current thread, so that the threads that work for it can bind it too.
+     */
+    public static Object getBoundKey() {
+        return captureKey.get();
+    }
+
+    /**
+     * Gets the buffer of the current thread, which is looked up again once a different key is bound.
+     *
+     * @return
+     *      null if the current thread doesn't belong to any worker.
+     */
+    private Binding getBinding() {
+        Object key = captureKey.get();
+        Binding b = local.get();
+        if(b==null || b.key!=key) {
+            if(b!=null)
+                b.endLine();
+            b = new Binding(key);
+            local.set(b);
+        }
+        return b;
+    }
+
+    private static ThreadGroup workerGroup() {
         ThreadGroup tg;
         for( tg = Thread.currentThread().getThreadGroup(); tg!=null && !(tg instanceof WorkerThreadGroup); tg=tg.getParent() )
             ;
+        return tg;
+    }
 
-        Streams s = (Streams)buffer.get(tg);
-        if(s==null)
-            buffer.put(tg,s = new Streams());
-
+    /**
+     * Finds the buffer for the current thread, either from the key bound to it,
+     * or else from its thread group.
+     *
+     * <p>
+     * Worker threads as well as threads that tests start on their own
+     * belong to a {@link WorkerThreadGroup}.
+     */
+    private Streams lookup(Object key) {
+        if(key==null)
+            key = workerGroup();
+
+        if(key==null)
+            return null;
+
+        Streams s = buffer.get(key);
+        if(s==null) {
+            Streams n = new Streams();
+            s = buffer.putIfAbsent(key,n);
+            if(s==null)
+                s = n;
+        }
         return s;
     }
 
     private PrintStream out() {
-        return getStreams().ps;
+        Binding b = getBinding();
+        // threads a test leaves behind may still write after its output is released
+        return b.streams==null || !b.streams.released ? b.ps : base;
     }
 
     /**
-     * Sends the buffered output from this thread to the actual output.
+     * Takes away the output buffered so far from this thread, so that
+     * it can be sent to the actual output by somebody else.
+     *
+     * <p>
+     * In the streaming mode, this sends the incomplete line of this thread,
+     * and returns nothing.
      */
-    public synchronized void purge() {
-        getStreams().purge();
+    public CapturedOutput detach() {
+        Binding b = getBinding();
+        b.endLine();
+        return b.streams!=null ? b.streams.detach() : new CapturedOutput(new byte[0]);
+    }
+
+    /**
+     * Takes away the output buffered for the given key, and forgets the key.
+     * Further output from the threads bound to the key goes to the base stream.
+     *
+     * <p>
+     * In the streaming mode, this sends the incomplete line of this thread
+     * if it's bound to the key, and returns nothing.
+     */
+    public CapturedOutput detach(Object key) {
+        Binding b = local.get();
+        if(b!=null && b.key==key)
+            b.endLine();
+        Streams s = buffer.remove(key);
+        if(s==null)
+            return new CapturedOutput(new byte[0]);
+        s.released = true;
+        return s.detach();
     }
 
 
@@ -1,7 +1,21 @@
 package org.kohsuke.junit;
 
+import junit.extensions.TestDecorator;
 import junit.framework.*;
 
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * {@link TestSuite} that runs {@link Test}s in parallel.
  *
@@ -17,6 +31,15 @@ import junit.framework.*;
  * Furthermore, the output to the screen by {@link Test}s are serialized
  * to avoid screen cluttering.
  *
+ * <p>
+ * Tests that use the same {@link SharedResource} aren't run at the same time
+ * beyond what the resource allows. Meanwhile, other tests run in their place.
+ *
+ * <p>
+ * A suite can be split across machines; see {@link Shard}. It can also skip the tests
+ * that aren't affected by the changes since they last passed; see {@link DependencyIndex},
+ * or report them from a {@link ResultCache}.
+ *
  * @author Kohsuke Kawaguchi (kk@kohsuke.org)
  */
 public class ParallelTestSuite extends TestSuite {
@@ -24,13 +47,103 @@ public class ParallelTestSuite extends TestSuite {
     private ParallelPrintStream err;
 
     /**
-     * Before the test starts, this field keeps the number of worker threads.
-     * Once the test is started, this field keeps the number of live worker threads.
+     * Number of worker threads.
      */
     private int nThreads;
 
+    /**
+     * Once the test is started, this field keeps the number of live worker threads.
+     */
+    private int liveThreads;
+
     private ThreadMarshaller tm;
 
+    private TestScheduler scheduler = new WorkStealingScheduler();
+
+    /**
+     * Wraps {@link #scheduler} during a run to respect {@link SharedResource}s.
+     */
+    private ResourceScheduler resources;
+
+    /**
+     * Non-null during a run if this suite runs a {@link Shard} of itself.
+     */
+    private Shard shard;
+
+    /**
+     * Non-null during a run if only the tests affected by the changes are run.
+     */
+    private DependencyIndex dependencies;
+
+    /**
+     * Number of tests of each class that are yet to be reported, if {@link #dependencies} is non-null.
+     * If the run is cancelled, the classes whose tests didn't all run don't count as passed.
+     */
+    private Map<String,Integer> unreported;
+
+    /**
+     * Non-null during a run if the passing results are cached.
+     */
+    private ResultCache cache;
+
+    private int captureMemoryLimit = ParallelPrintStream.DEFAULT_MEMORY_LIMIT;
+
+    private boolean streamOutput = ParallelPrintStream.isStreamingByDefault();
+
+    private boolean adaptive = AdaptiveThreadCount.isEnabledByDefault();
+
+    private int virtualThreadLimit = VirtualThreads.defaultLimit();
+
+    private TestHistory history = TestHistory.getDefault();
+
+    private int failFast = FailFast.defaultThreshold();
+
+    private int forks = Integer.getInteger(ForkedJvm.PROPERTY,0);
+
+    private List<String> forkJvmArgs = ForkedJvm.defaultJvmArgs();
+
+    private boolean collectMetrics = RunMetrics.isEnabledByDefault();
+
+    /**
+     * Metrics of the current or the last run.
+     */
+    private volatile RunMetrics metrics;
+
+    /**
+     * Number of failed tests reported so far. Only touched by the main thread.
+     */
+    private int failures;
+
+    /**
+     * Set once the run is cancelled, to tell the workers not to start any more tests.
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Live worker threads, to be interrupted on cancellation.
+     */
+    private final List<Thread> workerThreads = new ArrayList<Thread>();
+
+    /**
+     * Child JVMs of the live workers in the fork mode, to be killed on cancellation.
+     */
+    private final List<ForkedJvm> forkedJvms = new ArrayList<ForkedJvm>();
+
+    /**
+     * Resizes the worker pool during the run in the adaptive mode.
+     */
+    private AdaptiveThreadCount controller;
+
+    /**
+     * Id of the next {@link Worker} to be created.
+     */
+    private int nextWorkerId;
+
+    /**
+     * Number of worker threads that are asked to exit by the adaptive mode.
+     */
+    private final AtomicInteger retiring = new AtomicInteger();
+
     public ParallelTestSuite(int nThreads) {
         this.nThreads = nThreads;
     }
@@ -66,45 +179,385 @@ public class ParallelTestSuite extends TestSuite {
         this(name, defaultThreadSize());
     }
 
+    /**
+     * Gets the {@link TestScheduler} that decides the order tests are run.
+     */
+    public TestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Sets the {@link TestScheduler} that decides the order tests are run.
+     *
+     * <p>
+     * By default, {@link WorkStealingScheduler} is used.
+     */
+    public void setScheduler(TestScheduler scheduler) {
+        if(scheduler==null)
+            throw new IllegalArgumentException();
+        this.scheduler = scheduler;
+    }
+
+    public int getCaptureMemoryLimit() {
+        return captureMemoryLimit;
+    }
+
+    /**
+     * Sets the number of bytes of stdout (and stderr separately) that a test
+     * can produce before its output is moved from memory to a temporary file.
+     *
+     * <p>
+     * The default is 1MB, and it can be also changed by the
+     * <tt>org.kohsuke.junit.ParallelPrintStream.memoryLimit</tt> system property.
+     */
+    public void setCaptureMemoryLimit(int bytes) {
+        this.captureMemoryLimit = bytes;
+    }
+
+    public boolean isStreamOutput() {
+        return streamOutput;
+    }
+
+    /**
+     * If true, each line that tests print is written out right away, prefixed by the worker and the test,
+     * instead of holding the output of each test until it ends. Useful for long tests.
+     * The output of tests run in child JVMs is still captured.
+     *
+     * <p>
+     * The default is taken from the <tt>org.kohsuke.junit.streamOutput</tt> system property.
+     */
+    public void setStreamOutput(boolean streamOutput) {
+        this.streamOutput = streamOutput;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Turns on/off the adaptive mode.
+     *
+     * <p>
+     * In the adaptive mode, the number of threads given to the constructor is only the
+     * initial number of worker threads. More threads are added while the tests spend
+     * their time blocked and CPUs are idle, and threads are removed when the CPUs are
+     * oversubscribed. See {@link AdaptiveThreadCount}.
+     *
+     * <p>
+     * The default is taken from the <tt>org.kohsuke.junit.adaptive</tt> system property.
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public int getVirtualThreads() {
+        return virtualThreadLimit;
+    }
+
+    /**
+     * Turns on/off the virtual-thread mode.
+     *
+     * <p>
+     * In this mode, tests are run on virtual threads, which suits tests that
+     * spend most of their time sleeping or waiting for I/O.
+     * The number of threads given to the constructor and the adaptive mode are ignored.
+     *
+     * <p>
+     * The default is taken from the <tt>org.kohsuke.junit.virtualThreads</tt> system property.
+     *
+     * @param limit
+     *      Maximum number of tests that run at the same time,
+     *      or 0 to turn off the virtual-thread mode.
+     * @see VirtualThreads
+     */
+    public void setVirtualThreads(int limit) {
+        this.virtualThreadLimit = Math.max(0,limit);
+    }
+
+    public TestHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Sets the {@link TestHistory} that records the duration of the tests.
+     *
+     * <p>
+     * If set, the tests that failed in the last run are started first, followed by
+     * the tests that took longer in the past runs. The default is taken from the <tt>org.kohsuke.junit.history</tt> system property.
+     *
+     * @param history
+     *      null to disable the history.
+     */
+    public void setHistory(TestHistory history) {
+        this.history = history;
+    }
+
+    public int getFailFast() {
+        return failFast;
+    }
+
+    /**
+     * Turns on/off the fail-fast mode.
+     *
+     * <p>
+     * Once the given number of tests have failed, the tests that haven't started yet
+     * are skipped, and the worker threads are interrupted to abort the tests in progress.
+     * The tests that fail after that aren't reported.
+     * The run is also cancelled this way when {@link TestResult#stop()} is called.
+     *
+     * <p>
+     * The default is taken from the <tt>org.kohsuke.junit.failFast</tt> system property.
+     *
+     * @param n
+     *      Number of failures to stop at, or 0 to run all the tests no matter what.
+     * @see FailFast
+     */
+    public void setFailFast(int n) {
+        this.failFast = Math.max(0,n);
+    }
+
+    public int getForks() {
+        return forks;
+    }
+
+    /**
+     * Turns on/off the fork mode.
+     *
+     * <p>
+     * In this mode, each worker runs {@link TestCase}s in its own child JVM, so tests
+     * that change static state or system properties don't step on each other.
+     * A test is recreated in the child JVM from its class and name, so this only works
+     * for a {@link TestCase} that has a public constructor that takes the name or no
+     * argument. Other tests are run in this JVM as usual.
+     * Child JVMs are reused for the following tests, and the events and the output
+     * of each test are reported in the same way as in-process tests.
+     *
+     * <p>
+     * The number of threads given to the constructor, the adaptive mode,
+     * and the virtual-thread mode are ignored in this mode.
+     * The default is taken from the <tt>org.kohsuke.junit.forks</tt> system property.
+     *
+     * @param n
+     *      Number of child JVMs, or 0 to run all the tests in this JVM.
+     */
+    public void setForks(int n) {
+        this.forks = Math.max(0,n);
+    }
+
+    public boolean isCollectMetrics() {
+        return collectMetrics;
+    }
+
+    /**
+     * Turns on/off the collection of {@link RunMetrics}.
+     *
+     * <p>
+     * The metrics of each run is also registered as an MBean.
+     * The default is taken from the <tt>org.kohsuke.junit.metrics</tt> system property.
+     */
+    public void setCollectMetrics(boolean collectMetrics) {
+        this.collectMetrics = collectMetrics;
+    }
+
+    /**
+     * Returns the metrics of the current or the last run.
+     *
+     * @return
+     *      null if the metrics wasn't collected.
+     */
+    public RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    public List<String> getForkJvmArgs() {
+        return forkJvmArgs;
+    }
+
+    /**
+     * Sets additional command line options of the child JVMs in the fork mode, such as "-Xmx256m".
+     * The classpath is always the same as this JVM.
+     *
+     * <p>
+     * The default is taken from the <tt>org.kohsuke.junit.forkArgs</tt> system property.
+     */
+    public void setForkJvmArgs(List<String> args) {
+        this.forkJvmArgs = new ArrayList<String>(args);
+    }
+
     public void run(final TestResult result) {
-        out = new ParallelPrintStream(System.out);
+        if(virtualThreadLimit>0 && forks==0)
+            VirtualThreads.warnIfUnsupported();
+
+        out = new ParallelPrintStream(System.out,captureMemoryLimit,streamOutput);
         System.setOut(out);
-        err = new ParallelPrintStream(System.err);
+        err = new ParallelPrintStream(System.err,captureMemoryLimit,streamOutput);
         System.setErr(err);
 
+        final DependencyIndex ownIndex = DependencyIndex.begin();
+        final ResultCache ownCache = ResultCache.begin();
         try {
-            // this thread marshaller serializes the calls from multiple threads
+            final TestListener listener = new TestListener() {
+                public void addError(Test test, Throwable t) {
+                    result.addError(test,t);
+                }
+
+                public void addFailure(Test test, AssertionFailedError t) {
+                    result.addFailure(test,t);
+                }
+
+                public void startTest(Test test) {
+                    result.startTest(test);
+                }
+
+                public void endTest(Test test) {
+                    result.endTest(test);
+                }
+            };
+
+            shard = Shard.begin();
+            dependencies = DependencyIndex.getActive();
+            cache = ResultCache.getActive();
+
+            // this thread marshaller serializes the reports from multiple threads
             // into the main thread.
             tm = new ThreadMarshaller(
-                TestListener.class,
-                new TestListener() {
-                    public void addError(Test test, Throwable t) {
-                        result.addError(test,t);
+                Reporter.class,
+                new Reporter() {
+                    public void report(CompletedTest t) {
+                        if(t.aborted) {
+                            // interrupted by cancel(). it didn't really fail, and its duration means nothing
+                            t.writeOutput(out.getBase(),err.getBase());
+                            return;
+                        }
+                        boolean failed = t.events.failureCount()>0;
+                        if(unreported!=null) {
+                            Integer n = unreported.get(t.test.getClass().getName());
+                            if(n!=null)
+                                unreported.put(t.test.getClass().getName(),n-1);
+                        }
+                        if(history!=null && t.test instanceof TestCase)
+                            history.record(t.test.toString(),t.duration,failed);
+                        if(shard!=null && t.test instanceof TestCase)
+                            shard.record(t.test.toString(),t.duration,failed);
+                        if(dependencies!=null && (failed || !cancelled)) {
+                            Set<String> classes = classesOf(t.test);
+                            if(classes!=null)
+                                dependencies.record(classes,failed);
+                        }
+                        if(cache!=null && !failed && !cancelled && t.test instanceof TestCase) {
+                            String key = cacheKey((TestCase)t.test);
+                            if(key!=null)
+                                cache.put(key,t.duration,Collections.<String>emptyList());
+                        }
+                        result.startTest(t.test);
+                        t.writeOutput(out.getBase(),err.getBase());
+                        t.events.replay(listener);
+                        result.endTest(t.test);
+
+                        if(failed)
+                            failures++;
+                        if(!cancelled && ((failFast>0 && failures>=failFast) || result.shouldStop()))
+                            cancel(result);
                     }
+                });
+            // workers don't need to wait for the reports to be processed.
+            tm.setAsync(true);
 
-                    public void addFailure(Test test, AssertionFailedError t) {
-                        result.addFailure(test,t);
+            List<Test> tests = new ArrayList<Test>(testCount());
+            for( int i=0; i<testCount(); i++ )
+                tests.add(testAt(i));
+            if(dependencies!=null)
+                tests = selectAffected(tests);
+            if(shard!=null)
+                tests = selectShard(tests);
+            if(dependencies!=null) {
+                unreported = new HashMap<String,Integer>();
+                for( Test t : tests )
+                    countTests(t,unreported);
+            }
+            if(history!=null)
+                prioritize(tests);
+            int n = forks>0 ? forks : virtualThreadLimit>0 ? virtualThreadLimit : nThreads;
+            resources = new ResourceScheduler(scheduler,ResourceLocks.getDefault());
+            resources.start(tests,n);
+
+            if(collectMetrics) {
+                metrics = new RunMetrics(getName());
+                metrics.register();
+            } else {
+                metrics = null;
+            }
+
+            if(adaptive && virtualThreadLimit==0 && forks==0)
+                controller = new AdaptiveThreadCount(new AdaptiveThreadCount.Pool() {
+                    public int size() {
+                        synchronized (ParallelTestSuite.this) {
+                            return liveThreads-retiring.get();
+                        }
                     }
 
-                    public void startTest(Test test) {
-                        result.startTest(test);
+                    public void grow() {
+                        synchronized (ParallelTestSuite.this) {
+                            if(liveThreads==0)
+                                return; // too late
+                            startWorker();
+                        }
                     }
 
-                    public void endTest(Test test) {
-                        result.endTest(test);
+                    public void shrink() {
+                        if(size()>1)
+                            retiring.incrementAndGet();
                     }
-                });
+                }, nThreads);
 
-            // prevent nThreads from getting modified while we create threads 
+            failures = 0;
+            cancelled = false;
+
+            // prevent liveThreads from getting modified while we create threads
             synchronized (this) {
-                for( int i=0; i<nThreads; i++ )
-                    new WorkerThread( i, (TestListener)tm.getProxy() ).start();
+                nextWorkerId = 0;
+                for( int i=0; i<n; i++ )
+                    startWorker();
             }
 
+            if(controller!=null)
+                controller.start();
+
             tm.run(); // blocks until all the worker threads are finished,
         } finally {
+            if(controller!=null) {
+                controller.stop();
+                controller = null;
+            }
+            retiring.set(0);
+            if(resources!=null) {
+                resources.finish();
+                resources = null;
+            }
             System.setOut(out.getBase());
             System.setErr(err.getBase());
+            if(metrics!=null)
+                metrics.finish();
+            // in the shard mode, the history is updated when the shards are merged
+            if(history!=null && !Shard.isActive())
+                history.save();
+            if(shard!=null) {
+                shard.end();
+                shard = null;
+            }
+            if(ownCache!=null)
+                ownCache.end();
+            if(unreported!=null) {
+                if(cancelled)
+                    for( Map.Entry<String,Integer> e : unreported.entrySet() )
+                        if(e.getValue()>0)
+                            dependencies.record(Collections.singleton(e.getKey()),true);
+                unreported = null;
+            }
+            if(ownIndex!=null)
+                ownIndex.end();
+            dependencies = null;
+            cache = null;
             // clean up
             out = null;
             err = null;
@@ -113,112 +566,460 @@ public class ParallelTestSuite extends TestSuite {
     }
 
     /**
-     * Remembers the index of the next {@link Test} that needs to be run.
+     * Picks the tests of {@link #shard}, after breaking up the plain {@link TestSuite}s.
+     */
+    private List<Test> selectShard(List<Test> tests) {
+        List<Test> all = new ArrayList<Test>();
+        for( Test t : tests )
+            flatten(t,all);
+
+        List<String> names = new ArrayList<String>(all.size());
+        long[] durations = new long[all.size()];
+        long avg = history!=null ? history.getAverageDuration() : 0;
+        for( int i=0; i<all.size(); i++ ) {
+            Test t = all.get(i);
+            names.add(t.toString());
+            durations[i] = history!=null ? priority(t,avg).getDuration() : 1;
+        }
+        return shard.select(all,names,durations);
+    }
+
+    /**
+     * Picks the tests affected by the changes, according to {@link #dependencies}.
+     */
+    private List<Test> selectAffected(List<Test> tests) {
+        List<Set<String>> classes = new ArrayList<Set<String>>(tests.size());
+        for( Test t : tests )
+            classes.add(classesOf(t));
+        return dependencies.select(tests,classes);
+    }
+
+    /**
+     * Determines the classes of a test for {@link DependencyIndex}.
+     *
+     * @return
+     *      null if the test is a {@link ParallelTestSuite}, which selects its own tests.
+     */
+    private static Set<String> classesOf(Test t) {
+        Set<String> r = new TreeSet<String>();
+        return classesOf(t,r) ? r : null;
+    }
+
+    private static boolean classesOf(Test t, Set<String> r) {
+        if(t instanceof ParallelTestSuite)
+            return false;
+        if(t.getClass()!=TestSuite.class)
+            r.add(t.getClass().getName());
+        if(t instanceof TestDecorator)
+            return classesOf(((TestDecorator)t).getTest(),r);
+        if(t instanceof TestSuite) {
+            TestSuite s = (TestSuite)t;
+            for( int i=0; i<s.testCount(); i++ )
+                if(!classesOf(s.testAt(i),r))
+                    return false;
+        }
+        return true;
+    }
+
+    /**
+     * Counts the tests that will be reported for each class, the same way {@link #classesOf(Test)}
+     * looks into the suites. Tests in a nested {@link ParallelTestSuite} are recorded by that suite.
+     */
+    private static void countTests(Test t, Map<String,Integer> r) {
+        if(t instanceof ParallelTestSuite)
+            return;
+        if(t instanceof TestDecorator) {
+            countTests(((TestDecorator)t).getTest(),r);
+        } else if(t instanceof TestSuite) {
+            TestSuite s = (TestSuite)t;
+            for( int i=0; i<s.testCount(); i++ )
+                countTests(s.testAt(i),r);
+        } else {
+            Integer n = r.get(t.getClass().getName());
+            r.put(t.getClass().getName(),n!=null ? n+1 : 1);
+        }
+    }
+
+    /**
+     * Computes the key of a test in {@link #cache}.
+     *
+     * @return
+     *      null if the test can't be cached.
+     */
+    private String cacheKey(TestCase t) {
+        return cache.keyOf(Collections.singleton(t.getClass().getName()),t.toString());
+    }
+
+    private static void flatten(Test t, List<Test> r) {
+        if(t.getClass()==TestSuite.class) {
+            TestSuite s = (TestSuite)t;
+            for( int i=0; i<s.testCount(); i++ )
+                flatten(s.testAt(i),r);
+        } else {
+            r.add(t);
+        }
+    }
+
+    /**
+     * Sorts the tests in the order of their {@link TestHistory.Priority}.
      */
-    private int nextTestIndex;
+    private void prioritize(List<Test> tests) {
+        final Map<Test,TestHistory.Priority> priorities = new IdentityHashMap<Test,TestHistory.Priority>();
+        long avg = history.getAverageDuration();
+        for( Test t : tests )
+            priorities.put(t,priority(t,avg));
+        // stable, so tests we know nothing about remain in the original order
+        Collections.sort(tests,new Comparator<Test>() {
+            public int compare(Test o1, Test o2) {
+                return priorities.get(o1).compareTo(priorities.get(o2));
+            }
+        });
+    }
 
     /**
-     * {@link WorkerThread} can use this method to get a next {@link Test}.
+     * Computes the priority of a test from the history.
+     * A suite is as urgent as its most recently failed test, and takes as long as all its tests.
      *
-     * @return null if there's no more test.
+     * @param avg
+     *      Used for the tests that aren't in the history.
+     */
+    private TestHistory.Priority priority(Test t, long avg) {
+        if(t instanceof TestCase)
+            return history.getPriority(t.toString(),avg);
+        if(t instanceof TestSuite) {
+            TestSuite s = (TestSuite)t;
+            TestHistory.Priority p = new TestHistory.Priority(0,0);
+            for( int i=0; i<s.testCount(); i++ )
+                p = p.plus(priority(s.testAt(i),avg));
+            return p;
+        }
+        if(t instanceof TestDecorator)
+            return priority(((TestDecorator)t).getTest(),avg);
+        return new TestHistory.Priority(0,avg);
+    }
+
+    /**
+     * Stops the run. Called from the main thread.
+     */
+    private void cancel(TestResult result) {
+        cancelled = true;
+        result.stop();
+        List<ForkedJvm> jvms;
+        synchronized (this) {
+            for( Thread t : workerThreads )
+                t.interrupt();
+            jvms = new ArrayList<ForkedJvm>(forkedJvms);
+        }
+        // a test running in a child JVM can't be interrupted.
+        // killing one takes its monitor, so don't do that while holding ours
+        for( ForkedJvm jvm : jvms )
+            jvm.destroy();
+    }
+
+    /**
+     * Starts a new {@link Worker}.
      */
-    private synchronized Test getNextTest() {
-        if(nextTestIndex==testCount())
-            return null;
-        return testAt(nextTestIndex++);
+    private synchronized void startWorker() {
+        int id = nextWorkerId++;
+        Worker w = new Worker(id,(Reporter)tm.getProxy());
+        Thread t;
+        if(forks>0) {
+            w.jvm = new ForkedJvm(forkJvmArgs,captureMemoryLimit);
+            forkedJvms.add(w.jvm);
+        }
+        if(virtualThreadLimit>0 && forks==0) {
+            t = VirtualThreads.newThread("WorkerThread-"+id,w);
+            w.captureKey = w;
+        } else {
+            WorkerThreadGroup g = new WorkerThreadGroup(id,w);
+            t = new Thread(g,w,"WorkerThread-"+id);
+            w.captureKey = g;
+        }
+        liveThreads++;
+        workerThreads.add(t);
+        t.start();
     }
 
     /**
-     * {@link WorkerThread} calls this method once it's done.
+     * {@link Worker} calls this method once it's done.
      */
-    private synchronized void finish() {
-        nThreads--;
-        if(nThreads==0)
+    private synchronized void finish(Worker w) {
+        workerThreads.remove(Thread.currentThread());
+        forkedJvms.remove(w.jvm);
+        liveThreads--;
+        if(liveThreads==0)
             tm.finish();
     }
 
-    final class WorkerThread extends Thread {
+    /**
+     * Everything a worker has to report about a {@link Test} that finished.
+     */
+    static final class CompletedTest {
+        final Test test;
+        /**
+         * Events other than startTest/endTest.
+         */
+        final TestListenerRecorder events;
+        final CapturedOutput out;
+        final CapturedOutput err;
+        /**
+         * How long the test took, in milliseconds.
+         */
+        final long duration;
+        /**
+         * True if the test only failed because the run was cancelled while it was running.
+         */
+        boolean aborted;
+
+        CompletedTest(Test test, TestListenerRecorder events, CapturedOutput out, CapturedOutput err, long duration) {
+            this.test = test;
+            this.events = events;
+            this.out = out;
+            this.err = err;
+            this.duration = duration;
+        }
+
+        void writeOutput(PrintStream out, PrintStream err) {
+            this.out.writeTo(out);
+            this.err.writeTo(err);
+        }
+    }
+
+    /**
+     * Receives {@link CompletedTest}s from worker threads.
+     *
+     * <p>
+     * Calls are marshalled to the thread that runs the suite, and since that's the only
+     * thread that talks to the {@link TestResult}, the report of one test is never
+     * interleaved with another.
+     */
+    interface Reporter {
+        void report(CompletedTest t);
+    }
+
+    /**
+     * Called by a {@link Worker} between tests to see if it should exit.
+     */
+    private boolean retire() {
+        int r;
+        while((r=retiring.get())>0)
+            if(retiring.compareAndSet(r,r-1))
+                return true;
+        return false;
+    }
+
+    /**
+     * Runs tests one after another in a worker thread, which is either a platform
+     * thread in its own {@link WorkerThreadGroup}, or a virtual thread.
+     */
+    final class Worker implements Runnable {
+        private final int id;
+        private final Reporter reporter;
         private final TestResult result;
 
-        WorkerThread(int id,TestListener listener) {
-            super(new WorkerThreadGroup(id),"WorkerThread-"+id);
-            this.result = new ProxyTestResult(listener);
+        /**
+         * Identifies the output capture buffer of this worker.
+         */
+        private Object captureKey;
+
+        /**
+         * The {@link TestCase} being run, if any.
+         */
+        private volatile Test current;
+
+        /**
+         * Child JVM to run tests in, if in the fork mode.
+         */
+        private ForkedJvm jvm;
+
+        /**
+         * Non-null if the metrics is collected.
+         */
+        private RunMetrics.WorkerMetrics wm;
+
+        /**
+         * {@link RunMetrics#getStartTime()}.
+         */
+        private long runStart;
+
+        Worker(int id,Reporter reporter) {
+            this.id = id;
+            this.reporter = reporter;
+            this.result = new ProxyTestResult(reporter);
+        }
+
+        /**
+         * Tags the lines in the streaming mode.
+         */
+        public String toString() {
+            Test t = current;
+            return "WorkerThread-"+id+(t!=null ? " "+t : "");
         }
 
         public void run() {
+            ParallelPrintStream.bind(captureKey);
+
+            RunMetrics m = metrics;
+            if(m!=null) {
+                wm = m.startWorker();
+                runStart = m.getStartTime();
+            }
+
+            Thread self = Thread.currentThread();
+            AdaptiveThreadCount c = controller;
+            if(c!=null)
+                c.register(self);
             try {
                 Test t;
-                while((t=getNextTest())!=null) {
-                    t.run(result);
+                while(!cancelled && !retire() && (t=resources.next(id))!=null) {
+                    try {
+                        runTest(t);
+                    } finally {
+                        resources.done(t);
+                    }
                 }
             } finally {
-                finish();
+                if(jvm!=null)
+                    jvm.close();
+                if(c!=null)
+                    c.unregister(self);
+                if(wm!=null)
+                    wm.finish();
+                finish(this);
             }
         }
 
+        private void runTest(Test t) {
+            if((jvm!=null || cache!=null) && t.getClass()==TestSuite.class) {
+                // the scheduler didn't split it. do it here so that its tests can be forked or replayed
+                TestSuite s = (TestSuite)t;
+                for( int i=0; i<s.testCount() && !result.shouldStop(); i++ )
+                    runTest(s.testAt(i));
+                return;
+            }
+            if(cache!=null && t instanceof TestCase && replay((TestCase)t))
+                return;
+            if(jvm!=null)
+                runForked(t);
+            else
+                t.run(result);
+        }
+
         /**
-         * Passed to {@link Test}s run in this worker thread.
+         * Reports a test from the {@link ResultCache} instead of running it.
+         *
+         * @return
+         *      false if the test isn't in the cache.
+         */
+        private boolean replay(TestCase t) {
+            String key = cacheKey(t);
+            ResultCache.Entry e = key!=null ? cache.get(key) : null;
+            if(e==null)
+                return false;
+            cache.hit();
+            reporter.report(new CompletedTest(t,new TestListenerRecorder(),
+                new CapturedOutput(new byte[0]),new CapturedOutput(new byte[0]),e.getDuration()));
+            return true;
+        }
+
+        /**
+         * Runs a test in the child JVM if possible, or else in this thread.
+         */
+        private void runForked(Test t) {
+            if(!ForkedJvm.canFork(t)) {
+                t.run(result);
+                return;
+            }
+
+            CompletedTest ct;
+            long start = System.nanoTime();
+            try {
+                ct = jvm.run((TestCase)t);
+            } catch (IOException e) {
+                if(cancelled)
+                    return; // we killed it
+                ct = ForkedJvm.crashed(t,e);
+            }
+            long end = System.nanoTime();
+            reporter.report(ct);
+            if(wm!=null)
+                wm.testFinished(t.toString(),start,start-runStart,end-start,System.nanoTime()-end);
+        }
+
+        /**
+         * Passed to {@link Test}s run in this worker.
          *
          * <p>
          * Record method calls until we receive the endTest event,
-         * and then serialize the events to the main method at once.
+         * and then hand the events and the output to the main thread at once.
          *
          * <p>
-         * This minimizes the time we occupy the main thread, thus
-         * allowing multiple worker threads to run tests.
+         * The hand-off is asynchronous, so the worker goes on to
+         * the next test without waiting for the main thread.
          */
         final class ProxyTestResult extends TestResult {
-            private final MethodCallRecorder recorder;
-            private final TestListener core;
-            private TestListener recorderProxy;
+            private TestListenerRecorder recorder;
+            private final Reporter reporter;
+            private long startTime;
+            /**
+             * Set if errors were dropped because the run had been cancelled.
+             */
+            private boolean interrupted;
 
-            public ProxyTestResult(TestListener core) {
-                recorder = new MethodCallRecorder(TestListener.class);
-                recorderProxy = (TestListener)recorder.getProxy();
-                this.core = core;
+            public ProxyTestResult(Reporter reporter) {
+                recorder = new TestListenerRecorder();
+                this.reporter = reporter;
             }
 
             public synchronized void addError(Test test, Throwable t) {
+                if(cancelled) {
+                    // most likely caused by cancel() interrupting the test
+                    interrupted = true;
+                    return;
+                }
                 super.addError(test, t);
-                recorderProxy.addError(test,t);
+                recorder.addError(test,t);
             }
 
             public synchronized void addFailure(Test test, AssertionFailedError t) {
+                if(cancelled) {
+                    interrupted = true;
+                    return;
+                }
                 super.addFailure(test, t);
-                recorderProxy.addFailure(test,t);
+                recorder.addFailure(test,t);
+            }
+
+            /**
+             * Lets a {@link TestSuite} run in this worker stop in the middle on cancellation.
+             */
+            public synchronized boolean shouldStop() {
+                return cancelled || super.shouldStop();
             }
 
             public void startTest(Test test) {
                 super.startTest(test);
+                current = test;
+                startTime = System.nanoTime();
             }
 
             public void endTest(Test test) {
                 super.endTest(test);
+                long end = System.nanoTime();
 
-                synchronized(ParallelTestSuite.this) {
-                    core.startTest(test);
-
-                    // send the output
-                    out.purge();
-                    err.purge();
-
-                    // send the accumulated method calls to the actual object
-                    try {
-                        recorder.replay(core);
-                    } catch (RuntimeException e) {
-                        // must be a bug in the test result listener
-                        throw e;
-                    } catch(Error e) {
-                        throw e;
-                    } catch (Throwable e) {
-                        // impossible
-                        e.printStackTrace();
-                        throw new InternalError();
-                    }
-                    recorder.clear();
-
-                    core.endTest(test);
+                CompletedTest ct;
+                synchronized(this) {
+                    long duration = (end-startTime)/1000000;
+                    ct = new CompletedTest(test,recorder,out.detach(),err.detach(),duration);
+                    ct.aborted = interrupted && recorder.failureCount()==0;
+                    interrupted = false;
+                    // the recorder now belongs to the main thread
+                    recorder = new TestListenerRecorder();
                 }
+                current = null;
+                reporter.report(ct);
+                if(wm!=null)
+                    wm.testFinished(test.toString(),startTime,startTime-runStart,end-startTime,System.nanoTime()-end);
             }
         }
     }
@@ -227,6 +1028,6 @@ public class ParallelTestSuite extends TestSuite {
      * Gets the default thread pool size.
      */
     private static final int defaultThreadSize() {
-        return 4;
+        return ThreadCount.defaultThreadSize();
     }
 }
@@ -0,0 +1,159 @@
+package org.kohsuke.junit;
+
+import java.lang.annotation.Annotation;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps track of the {@link SharedResource}s in use.
+ *
+ * <p>
+ * A test acquires all of its resources at once or none of them, so tests can't deadlock
+ * each other no matter in what order they declare them. One instance is shared by all the
+ * suites in the JVM, so that nested suites and suites run side by side respect each other.
+ *
+ * <p>
+ * The capacity of a resource is the smallest {@link SharedResource#permits()} seen so far.
+ */
+public final class ResourceLocks {
+    private static final ResourceLocks theDefault = new ResourceLocks();
+
+    /**
+     * Capacity of each resource.
+     */
+    private final Map<String,Integer> capacities = new HashMap<String,Integer>();
+
+    /**
+     * Number of tests using each resource. Resources not in use aren't in this map.
+     */
+    private final Map<String,Integer> inUse = new HashMap<String,Integer>();
+
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+
+    public static ResourceLocks getDefault() {
+        return theDefault;
+    }
+
+    /**
+     * Resources that a test uses.
+     */
+    public static final class Claim {
+        public static final Claim NONE = new Claim(Collections.<String>emptySet());
+
+        private final Set<String> names;
+
+        private Claim(Set<String> names) {
+            this.names = names;
+        }
+
+        public boolean isEmpty() {
+            return names.isEmpty();
+        }
+
+        /**
+         * Returns the union of the two claims.
+         */
+        public Claim plus(Claim that) {
+            if(that.isEmpty())
+                return this;
+            if(this.isEmpty())
+                return that;
+            Set<String> s = new TreeSet<String>(names);
+            s.addAll(that.names);
+            return new Claim(s);
+        }
+
+        public String toString() {
+            return names.toString();
+        }
+    }
+
+    /**
+     * Builds a {@link Claim} from the {@link SharedResource} annotations (and their containers)
+     * among the given ones, and registers their capacities.
+     */
+    public Claim claim(Collection<? extends Annotation> annotations) {
+        Set<String> names = null;
+        for( Annotation a : annotations ) {
+            SharedResource[] resources;
+            if(a instanceof SharedResource)
+                resources = new SharedResource[]{(SharedResource)a};
+            else if(a instanceof SharedResource.List)
+                resources = ((SharedResource.List)a).value();
+            else
+                continue;
+
+            for( SharedResource r : resources ) {
+                if(names==null)
+                    names = new TreeSet<String>();
+                names.add(r.value());
+                register(r);
+            }
+        }
+        return names!=null ? new Claim(names) : Claim.NONE;
+    }
+
+    private synchronized void register(SharedResource r) {
+        int p = Math.max(1,r.permits());
+        Integer c = capacities.get(r.value());
+        if(c==null || p<c)
+            capacities.put(r.value(),p);
+    }
+
+    /**
+     * Acquires all the resources of the claim if they are all available.
+     *
+     * @return
+     *      false if any of them isn't available, in which case nothing is acquired.
+     */
+    public synchronized boolean tryAcquire(Claim c) {
+        for( String n : c.names ) {
+            Integer u = inUse.get(n);
+            if(u!=null && u>=capacities.get(n))
+                return false;
+        }
+        for( String n : c.names ) {
+            Integer u = inUse.get(n);
+            inUse.put(n,u==null ? 1 : u+1);
+        }
+        return true;
+    }
+
+    /**
+     * Releases the resources acquired by {@link #tryAcquire(Claim)}, and
+     * lets the listeners know.
+     */
+    public void release(Claim c) {
+        if(c.isEmpty())
+            return;
+        synchronized (this) {
+            for( String n : c.names ) {
+                int u = inUse.get(n);
+                if(u==1)
+                    inUse.remove(n);
+                else
+                    inUse.put(n,u-1);
+            }
+        }
+        for( Runnable l : listeners )
+            l.run();
+    }
+
+    /**
+     * Registers a listener that's called after resources are released,
+     * from the thread that released them.
+     */
+    public void addListener(Runnable l) {
+        listeners.add(l);
+    }
+
+    public void removeListener(Runnable l) {
+        listeners.remove(l);
+    }
+}
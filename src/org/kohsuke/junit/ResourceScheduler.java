@@ -0,0 +1,182 @@
+package org.kohsuke.junit;
+
+import junit.extensions.TestDecorator;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link TestScheduler} that holds back the tests whose {@link SharedResource}s are
+ * in use, and hands out other tests from the underlying scheduler in their place.
+ *
+ * <p>
+ * A held-back test is handed out as soon as its resources become available,
+ * ahead of the tests that haven't been looked at yet. Once the underlying
+ * scheduler runs out, workers wait for the held-back tests.
+ *
+ * <p>
+ * {@link #done(Test)} must be called when a test handed out by this scheduler finishes.
+ */
+final class ResourceScheduler implements TestScheduler, Runnable {
+    private final TestScheduler base;
+
+    private final ResourceLocks locks;
+
+    /**
+     * Tests waiting for their resources, in the order they were picked up.
+     */
+    private final Map<Test,ResourceLocks.Claim> blocked = new LinkedHashMap<Test,ResourceLocks.Claim>();
+
+    /**
+     * Resources held by the tests being run.
+     */
+    private final Map<Test,ResourceLocks.Claim> held = new IdentityHashMap<Test,ResourceLocks.Claim>();
+
+    /**
+     * Set once the underlying scheduler has no more tests.
+     */
+    private boolean exhausted;
+
+    ResourceScheduler(TestScheduler base, ResourceLocks locks) {
+        this.base = base;
+        this.locks = locks;
+    }
+
+    public void start(List<Test> tests, int nWorkers) {
+        synchronized (this) {
+            blocked.clear();
+            held.clear();
+            exhausted = false;
+        }
+        base.start(tests,nWorkers);
+        locks.addListener(this);
+    }
+
+    /**
+     * Stops listening to the {@link ResourceLocks}. Called once the run is over.
+     */
+    void finish() {
+        locks.removeListener(this);
+    }
+
+    public Test next(int worker) {
+        while(true) {
+            synchronized (this) {
+                Test t = unblock();
+                if(t!=null)
+                    return t;
+                if(exhausted) {
+                    if(blocked.isEmpty())
+                        return null;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // the run is cancelled
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                    continue;
+                }
+            }
+
+            Test t = base.next(worker);
+            if(t==null) {
+                synchronized (this) {
+                    exhausted = true;
+                }
+                continue;
+            }
+
+            ResourceLocks.Claim c = claimOf(t);
+            if(c.isEmpty())
+                return t;
+            synchronized (this) {
+                if(locks.tryAcquire(c)) {
+                    held.put(t,c);
+                    return t;
+                }
+                blocked.put(t,c);
+            }
+        }
+    }
+
+    /**
+     * Finds a held-back test whose resources are now available.
+     */
+    private Test unblock() {
+        for( Iterator<Map.Entry<Test,ResourceLocks.Claim>> itr = blocked.entrySet().iterator(); itr.hasNext(); ) {
+            Map.Entry<Test,ResourceLocks.Claim> e = itr.next();
+            if(locks.tryAcquire(e.getValue())) {
+                itr.remove();
+                held.put(e.getKey(),e.getValue());
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Releases the resources of a test handed out by {@link #next(int)}.
+     */
+    void done(Test t) {
+        ResourceLocks.Claim c;
+        synchronized (this) {
+            c = held.remove(t);
+        }
+        if(c!=null)
+            locks.release(c);
+    }
+
+    /**
+     * Called when resources are released, possibly by other suites.
+     */
+    public synchronized void run() {
+        notifyAll();
+    }
+
+    /**
+     * Determines the resources a test uses.
+     *
+     * <p>
+     * A {@link ParallelTestSuite} takes care of its own tests, and a {@link TestSuite}
+     * that's run as a whole uses the resources of all its tests.
+     */
+    private ResourceLocks.Claim claimOf(Test t) {
+        if(t instanceof TestCase) {
+            List<Annotation> a = new ArrayList<Annotation>();
+            a.addAll(Arrays.asList(t.getClass().getAnnotationsByType(SharedResource.class)));
+            String name = ((TestCase)t).getName();
+            if(name!=null) {
+                try {
+                    Method m = t.getClass().getMethod(name);
+                    a.addAll(Arrays.asList(m.getAnnotationsByType(SharedResource.class)));
+                } catch (NoSuchMethodException e) {
+                    // runTest is overridden
+                }
+            }
+            return locks.claim(a);
+        }
+        if(t instanceof TestDecorator)
+            return claimOf(((TestDecorator)t).getTest());
+        if(t instanceof ParallelTestSuite)
+            return ResourceLocks.Claim.NONE;
+        if(t instanceof TestSuite) {
+            TestSuite s = (TestSuite)t;
+            ResourceLocks.Claim c = ResourceLocks.Claim.NONE;
+            for( int i=0; i<s.testCount(); i++ )
+                c = c.plus(claimOf(s.testAt(i)));
+            return c;
+        }
+        return locks.claim(Arrays.asList(t.getClass().getAnnotationsByType(SharedResource.class)));
+    }
+}
@@ -0,0 +1,271 @@
+package org.kohsuke.junit;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers the tests that passed, so that they don't have to run again until
+ * the code they depend on changes.
+ *
+ * <p>
+ * When the <tt>org.kohsuke.junit.resultCache</tt> system property is set to a directory,
+ * {@link ParallelTestSuite} and {@code ParallelSuite} look up each test before running it.
+ * The key is the hash of the test class and all the classes it depends on (see
+ * {@link DependencyIndex#fingerprint(String)}), the name of the test, and the configuration:
+ * the Java version, the OS, and the <tt>org.kohsuke.junit.resultCache.key</tt> system property,
+ * which can be set to whatever else the tests depend on. If a passing result is found, its
+ * events are reported to the listeners as if the test had run, except that the output isn't
+ * kept. Only passing results are cached, so a failed test is always run again.
+ *
+ * <p>
+ * The cache is content-addressed: each result is a file named after its key, and nothing is
+ * ever updated in place, so a cache directory can be shared by concurrent runs and copied
+ * between machines that have the same class path layout. Old entries are never used again
+ * once the code changes, and can be deleted any time.
+ *
+ * <p>
+ * The {@link DependencyIndex} is the one of the run if the tests are selected by their
+ * dependencies, or else one kept in the cache directory.
+ */
+public final class ResultCache {
+    public static final String PROPERTY = "org.kohsuke.junit.resultCache";
+
+    public static final String KEY_PROPERTY = "org.kohsuke.junit.resultCache.key";
+
+    /**
+     * Cache used by the current run.
+     */
+    private static ResultCache active;
+
+    private final File dir;
+
+    private final DependencyIndex index;
+
+    /**
+     * True if {@link #index} is owned by this cache, and needs to be saved.
+     */
+    private boolean ownIndex;
+
+    private final String config;
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    /**
+     * A cached result.
+     */
+    public static final class Entry {
+        private final long duration;
+        private final List<String> events;
+
+        Entry(long duration, List<String> events) {
+            this.duration = duration;
+            this.events = events;
+        }
+
+        /**
+         * How long the test took when it ran, in milliseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * Events of the test, in whatever form the suite recorded them.
+         */
+        public List<String> getEvents() {
+            return events;
+        }
+    }
+
+    public ResultCache(File dir, DependencyIndex index) {
+        this.dir = dir;
+        this.index = index;
+        this.config = "java.version="+System.getProperty("java.version")
+            +"\njava.vendor="+System.getProperty("java.vendor")
+            +"\nos.name="+System.getProperty("os.name")
+            +"\nos.arch="+System.getProperty("os.arch")
+            +"\nkey="+System.getProperty(KEY_PROPERTY,"")+"\n";
+    }
+
+    /**
+     * Called by a suite when it starts running.
+     *
+     * @return
+     *      The cache, if the caller is the outermost suite and the system property is set.
+     *      The caller then needs to call {@link #end()} once it's done, after it started
+     *      the {@link DependencyIndex} if any. Otherwise null.
+     */
+    public static synchronized ResultCache begin() {
+        if(active!=null)
+            return null;
+        String d = System.getProperty(PROPERTY);
+        if(d==null || d.length()==0)
+            return null;
+        File dir = new File(d);
+
+        DependencyIndex index = DependencyIndex.getActive();
+        boolean own = index==null;
+        if(own) {
+            index = DependencyIndex.forClassPath(new File(dir,"index.properties"));
+            if(index==null)
+                return null;
+        }
+        active = new ResultCache(dir,index);
+        active.ownIndex = own;
+        return active;
+    }
+
+    /**
+     * Returns the cache used by the current run, for the suites nested in the outermost one.
+     *
+     * @return
+     *      null if the results aren't cached.
+     */
+    public static synchronized ResultCache getActive() {
+        return active;
+    }
+
+    /**
+     * Called by the outermost suite when it's done.
+     */
+    public void end() {
+        try {
+            if(ownIndex)
+                index.save();
+            if(hits.get()>0)
+                System.err.println("Reported "+hits.get()+" tests from the result cache in "+dir);
+        } finally {
+            synchronized (ResultCache.class) {
+                if(active==this)
+                    active = null;
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Computes the key of a test.
+     *
+     * @param testClasses
+     *      Classes the test runs.
+     * @param name
+     *      Name of the test, which tells it apart from other tests that run the same classes.
+     * @return
+     *      null if the test can't be cached, because some of its classes aren't in a directory
+     *      of the class path.
+     */
+    public String keyOf(Collection<String> testClasses, String name) {
+        if(testClasses==null || testClasses.isEmpty())
+            return null;
+        MessageDigest md = newDigest();
+        try {
+            md.update(config.getBytes("UTF-8"));
+            for( String c : new TreeSet<String>(testClasses) ) {
+                String fp = index.fingerprint(c);
+                if(fp==null)
+                    return null;
+                md.update((c+' '+fp+'\n').getBytes("UTF-8"));
+            }
+            md.update(name.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new AssertionError(e); // UTF-8 is always there
+        }
+        byte[] digest = md.digest();
+        StringBuilder buf = new StringBuilder(digest.length*2);
+        for( byte b : digest )
+            buf.append(Character.forDigit((b>>4)&15,16)).append(Character.forDigit(b&15,16));
+        return buf.toString();
+    }
+
+    /**
+     * Looks up the passing result of a test.
+     *
+     * @return
+     *      null if the test hasn't passed with this key.
+     */
+    public Entry get(String key) {
+        File f = fileOf(key);
+        if(!f.exists())
+            return null;
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(f));
+            try {
+                long duration = in.readLong();
+                int n = in.readInt();
+                List<String> events = new ArrayList<String>(n);
+                for( int i=0; i<n; i++ )
+                    events.add(in.readUTF());
+                return new Entry(duration,Collections.unmodifiableList(events));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // corrupted, or deleted from under us. just run the test again
+            return null;
+        }
+    }
+
+    /**
+     * Called by a suite when it reports a test from the cache.
+     */
+    public void hit() {
+        hits.incrementAndGet();
+    }
+
+    /**
+     * Remembers that a test passed.
+     */
+    public void put(String key, long duration, List<String> events) {
+        File f = fileOf(key);
+        if(f.exists())
+            return; // same key, same result
+        try {
+            File d = f.getParentFile();
+            d.mkdirs();
+            File tmp = File.createTempFile(key,".tmp",d);
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+            try {
+                out.writeLong(duration);
+                out.writeInt(events.size());
+                for( String e : events )
+                    out.writeUTF(e);
+            } finally {
+                out.close();
+            }
+            if(!tmp.renameTo(f)) {
+                tmp.delete();
+                if(!f.exists())
+                    throw new IOException("Failed to rename "+tmp+" to "+f);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write to the result cache: "+e);
+        }
+    }
+
+    private File fileOf(String key) {
+        return new File(new File(dir,key.substring(0,2)),key);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // every JRE has SHA-1
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package org.kohsuke.junit;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timings of a run of {@link ParallelTestSuite} or {@code ParallelSuite}, to tell whether
+ * a slow run is caused by the tests or by the framework.
+ *
+ * <p>
+ * For each test (a {@link junit.framework.TestCase} for JUnit 3, a TestClass for JUnit 4),
+ * this records:
+ * <dl>
+ * <dt>queue wait</dt><dd>from the start of the run (JUnit 3) or from the submission of the TestClass
+ *     (JUnit 4) until the test starts</dd>
+ * <dt>run time</dt><dd>from the start to the end of the test</dd>
+ * <dt>report latency</dt><dd>time the worker spent handing the result over, including the time blocked
+ *     in the {@link ThreadMarshaller} (JUnit 3), or the time spent buffering events for the
+ *     {@code RunNotifier} (JUnit 4)</dd>
+ * </dl>
+ * For each worker thread, this records the time spent in tests and the rest, and the time it was
+ * blocked entering monitors (such as the suite itself and the capture buffers) while it worked.
+ * The latter requires the thread contention monitoring of the JVM, which is turned on as needed
+ * and turned back off when the last of the runs that needed it is over.
+ *
+ * <p>
+ * The collection is turned on by the <tt>org.kohsuke.junit.metrics</tt> system property,
+ * and the metrics of each run is registered as an MBean (see {@link RunMetricsMXBean}).
+ * It's also turned on by the <tt>org.kohsuke.junit.trace</tt> system property, which makes
+ * each run write its timeline to a file; see {@link ChromeTrace}.
+ */
+public final class RunMetrics implements RunMetricsMXBean {
+    public static final String PROPERTY = "org.kohsuke.junit.metrics";
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final String suiteName;
+
+    private final long start = System.nanoTime();
+
+    /**
+     * 0 until the run is over.
+     */
+    private volatile long end;
+
+    private final Queue<TestMetrics> tests = new ConcurrentLinkedQueue<TestMetrics>();
+
+    private final List<WorkerMetrics> workers = new CopyOnWriteArrayList<WorkerMetrics>();
+
+    /**
+     * Threads of a shared pool that worked for this run.
+     */
+    private final ConcurrentMap<Thread,WorkerMetrics> poolThreads = new ConcurrentHashMap<Thread,WorkerMetrics>();
+
+    /**
+     * Number of runs in progress that use the thread contention monitoring we turned on,
+     * so that only the last of the concurrent runs turns it off.
+     */
+    private static int contentionMonitoringUsers;
+
+    /**
+     * True until {@link #finish()} lets go of the thread contention monitoring.
+     */
+    private boolean usesContentionMonitoring;
+
+    public RunMetrics(String suiteName) {
+        this.suiteName = suiteName!=null ? suiteName : "(unnamed)";
+        usesContentionMonitoring = startContentionMonitoring();
+    }
+
+    /**
+     * Turns on the thread contention monitoring, unless someone else already did.
+     *
+     * @return
+     *      true if the caller needs to call {@link #stopContentionMonitoring()} later.
+     */
+    private static synchronized boolean startContentionMonitoring() {
+        if(contentionMonitoringUsers==0) {
+            if(!threads.isThreadContentionMonitoringSupported() || threads.isThreadContentionMonitoringEnabled())
+                return false;
+            threads.setThreadContentionMonitoringEnabled(true);
+        }
+        contentionMonitoringUsers++;
+        return true;
+    }
+
+    private static synchronized void stopContentionMonitoring() {
+        if(--contentionMonitoringUsers==0)
+            threads.setThreadContentionMonitoringEnabled(false);
+    }
+
+    /**
+     * Returns {@link System#nanoTime()} at the start of the run.
+     */
+    public long getStartTime() {
+        return start;
+    }
+
+    public static boolean isEnabledByDefault() {
+        return Boolean.getBoolean(PROPERTY) || ChromeTrace.getDefaultDirectory()!=null;
+    }
+
+    /**
+     * Registers this object to the platform MBean server, replacing the metrics
+     * of the previous run of the same suite.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.kohsuke.junit:type=RunMetrics,name="+ObjectName.quote(suiteName));
+            if(server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this,name);
+        } catch (JMException e) {
+            System.err.println("Failed to register the metrics of "+suiteName+": "+e);
+        }
+    }
+
+    /**
+     * Starts recording a worker thread that works for this run until {@link WorkerMetrics#finish()}.
+     * Called from the worker thread.
+     */
+    public WorkerMetrics startWorker() {
+        WorkerMetrics w = new WorkerMetrics(Thread.currentThread().getName());
+        w.blockedAtStart = blockedMillis();
+        workers.add(w);
+        return w;
+    }
+
+    /**
+     * Gets the metrics of the current thread, which is a thread of a shared pool
+     * that works for this run on and off until the end of the run.
+     */
+    public WorkerMetrics poolWorker() {
+        Thread t = Thread.currentThread();
+        WorkerMetrics w = poolThreads.get(t);
+        if(w==null) {
+            w = new WorkerMetrics(t.getName());
+            w.start = start;
+            poolThreads.put(t,w);
+            workers.add(w);
+        }
+        return w;
+    }
+
+    /**
+     * Marks the end of the run, and writes the trace if requested by the system property.
+     */
+    public void finish() {
+        long now = System.nanoTime();
+        for( WorkerMetrics w : poolThreads.values() )
+            w.end = now;
+        end = now;
+
+        if(usesContentionMonitoring) {
+            usesContentionMonitoring = false;
+            stopContentionMonitoring();
+        }
+
+        File dir = ChromeTrace.getDefaultDirectory();
+        if(dir!=null)
+            ChromeTrace.write(this,dir);
+    }
+
+    /**
+     * Returns the time in milliseconds the current thread has spent blocked entering
+     * monitors since it started, or 0 if that's unknown.
+     */
+    public static long blockedMillis() {
+        if(!threads.isThreadContentionMonitoringEnabled())
+            return 0;
+        ThreadInfo ti = threads.getThreadInfo(Thread.currentThread().getId());
+        return ti!=null ? Math.max(0,ti.getBlockedTime()) : 0;
+    }
+
+    /**
+     * Returns the metrics of the tests finished so far.
+     */
+    public Collection<TestMetrics> getTests() {
+        return new ArrayList<TestMetrics>(tests);
+    }
+
+    public List<WorkerMetrics> getWorkers() {
+        return new ArrayList<WorkerMetrics>(workers);
+    }
+
+    public String getSuiteName() {
+        return suiteName;
+    }
+
+    public long getWallTimeMillis() {
+        long e = end;
+        return millis((e!=0 ? e : System.nanoTime())-start);
+    }
+
+    public int getTestCount() {
+        return tests.size();
+    }
+
+    public long getTotalQueueWaitMillis() {
+        long sum=0;
+        for( TestMetrics t : tests )
+            sum += t.queueWait;
+        return millis(sum);
+    }
+
+    public long getTotalRunTimeMillis() {
+        long sum=0;
+        for( TestMetrics t : tests )
+            sum += t.runTime;
+        return millis(sum);
+    }
+
+    public long getTotalReportLatencyMillis() {
+        long sum=0;
+        for( TestMetrics t : tests )
+            sum += t.reportLatency;
+        return millis(sum);
+    }
+
+    public long getMaxReportLatencyMillis() {
+        long max=0;
+        for( TestMetrics t : tests )
+            max = Math.max(max,t.reportLatency);
+        return millis(max);
+    }
+
+    public double getBusyRatio() {
+        long busy=0, total=0;
+        for( WorkerMetrics w : workers ) {
+            busy += w.busy;
+            total += w.lifetime();
+        }
+        return total>0 ? (double)busy/total : 0;
+    }
+
+    public long getTotalLockWaitMillis() {
+        long sum=0;
+        for( WorkerMetrics w : workers )
+            sum += w.getLockWaitMillis();
+        return sum;
+    }
+
+    public WorkerMetrics[] getWorkerMetrics() {
+        return workers.toArray(new WorkerMetrics[0]);
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Timings of one test. Times are in nanoseconds.
+     */
+    public static final class TestMetrics {
+        private final String name;
+        private final String worker;
+        private final long startTime;
+        private final long queueWait;
+        private final long runTime;
+        private final long reportLatency;
+
+        TestMetrics(String name, String worker, long startTime, long queueWait, long runTime, long reportLatency) {
+            this.name = name;
+            this.worker = worker;
+            this.startTime = startTime;
+            this.queueWait = queueWait;
+            this.runTime = runTime;
+            this.reportLatency = reportLatency;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getWorker() {
+            return worker;
+        }
+
+        /**
+         * When the test started, relative to the start of the run.
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getQueueWait() {
+            return queueWait;
+        }
+
+        public long getRunTime() {
+            return runTime;
+        }
+
+        public long getReportLatency() {
+            return reportLatency;
+        }
+
+        public String toString() {
+            return name+" on "+worker+": queued "+millis(queueWait)+"ms, ran "+millis(runTime)
+                +"ms, reported in "+TimeUnit.NANOSECONDS.toMicros(reportLatency)+"us";
+        }
+    }
+
+    /**
+     * Timings of one worker thread.
+     *
+     * <p>
+     * Only the worker thread itself updates this object.
+     */
+    public final class WorkerMetrics {
+        private final String name;
+        private volatile long start = System.nanoTime();
+        /**
+         * 0 while the worker is working.
+         */
+        private volatile long end;
+        private volatile long busy;
+        private volatile long lockWait;
+        private volatile int testCount;
+        private long blockedAtStart;
+
+        WorkerMetrics(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records a test that this worker ran.
+         *
+         * @param startTime
+         *      {@link System#nanoTime()} when the test started.
+         * @param queueWait
+         *      in nanoseconds, and so are the other parameters.
+         */
+        public void testFinished(String test, long startTime, long queueWait, long runTime, long reportLatency) {
+            tests.add(new TestMetrics(test,name,startTime-RunMetrics.this.start,queueWait,runTime,reportLatency));
+            busy += runTime+reportLatency;
+            testCount++;
+        }
+
+        /**
+         * Adds the time spent blocked entering monitors, in milliseconds.
+         */
+        public void addLockWait(long ms) {
+            lockWait += Math.max(0,ms);
+        }
+
+        /**
+         * Called by a worker returned from {@link RunMetrics#startWorker()} when it exits.
+         */
+        public void finish() {
+            lockWait += Math.max(0,blockedMillis()-blockedAtStart);
+            end = System.nanoTime();
+        }
+
+        private long lifetime() {
+            long e = end;
+            return (e!=0 ? e : System.nanoTime())-start;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getTestCount() {
+            return testCount;
+        }
+
+        public long getBusyMillis() {
+            return millis(busy);
+        }
+
+        public long getIdleMillis() {
+            return millis(Math.max(0,lifetime()-busy));
+        }
+
+        public double getBusyRatio() {
+            long l = lifetime();
+            return l>0 ? (double)busy/l : 0;
+        }
+
+        public long getLockWaitMillis() {
+            return lockWait;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.kohsuke.junit;
+
+/**
+ * JMX view of {@link RunMetrics}.
+ *
+ * <p>
+ * Registered as <tt>org.kohsuke.junit:type=RunMetrics,name=<i>suite name</i></tt>.
+ */
+public interface RunMetricsMXBean {
+    String getSuiteName();
+
+    /**
+     * Wall time of the run so far, or of the whole run once it's over.
+     */
+    long getWallTimeMillis();
+
+    int getTestCount();
+
+    long getTotalQueueWaitMillis();
+
+    long getTotalRunTimeMillis();
+
+    long getTotalReportLatencyMillis();
+
+    long getMaxReportLatencyMillis();
+
+    /**
+     * Time all the workers spent in tests, divided by the time they were alive.
+     */
+    double getBusyRatio();
+
+    long getTotalLockWaitMillis();
+
+    RunMetrics.WorkerMetrics[] getWorkerMetrics();
+}
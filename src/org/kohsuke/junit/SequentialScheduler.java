@@ -0,0 +1,32 @@
+package org.kohsuke.junit;
+
+import junit.framework.Test;
+
+import java.util.List;
+
+/**
+ * {@link TestScheduler} that hands out tests one by one from a single shared cursor.
+ *
+ * <p>
+ * Tests are started strictly in the order they were added, but every worker
+ * contends on the same monitor to get the next test.
+ */
+public class SequentialScheduler implements TestScheduler {
+    private List<Test> tests;
+
+    /**
+     * Remembers the index of the next {@link Test} that needs to be run.
+     */
+    private int nextTestIndex;
+
+    public synchronized void start(List<Test> tests, int nWorkers) {
+        this.tests = tests;
+        this.nextTestIndex = 0;
+    }
+
+    public synchronized Test next(int worker) {
+        if(nextTestIndex==tests.size())
+            return null;
+        return tests.get(nextTestIndex++);
+    }
+}
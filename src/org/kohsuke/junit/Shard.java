@@ -0,0 +1,319 @@
+package org.kohsuke.junit;
+
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One of the N parts of a suite, so that a suite can be split across several machines.
+ *
+ * <p>
+ * When the <tt>org.kohsuke.junit.shard</tt> system property is set to "<i>i</i>/<i>N</i>"
+ * (1 &lt;= i &lt;= N), the outermost {@link ParallelTestSuite} or {@code ParallelSuite} only
+ * runs the i-th of the N shards planned by {@link ShardPlanner} from the durations in the
+ * {@link TestHistory}. For JUnit 3, the suite is split into {@link junit.framework.TestCase}s,
+ * and for JUnit 4, into its children. Every process must see the same suite and the same history,
+ * so in this mode the history isn't updated by the suites; the merge step does that instead.
+ *
+ * <p>
+ * If the <tt>org.kohsuke.junit.shardResults</tt> system property is set to a directory, each
+ * shard writes the outcome of its tests there as <tt>shard-<i>i</i>-of-<i>N</i>.results</tt>.
+ * The suites that run one after another in the same JVM add to the same file.
+ * Once all the shards are done, they are merged with:
+ *
+ * <pre>
+ * java org.kohsuke.junit.Shard --merge <i>dir</i> [--history <i>file</i>]
+ * </pre>
+ *
+ * which checks that every shard reported and that no test ran twice, writes
+ * <tt>merged.results</tt>, and feeds the durations back to the history.
+ * A shard can also be run with:
+ *
+ * <pre>
+ * java org.kohsuke.junit.Shard --shard <i>i</i>/<i>N</i> [--results <i>dir</i>] <i>suite class</i>...
+ * </pre>
+ */
+public final class Shard {
+    public static final String PROPERTY = "org.kohsuke.junit.shard";
+
+    public static final String RESULTS_PROPERTY = "org.kohsuke.junit.shardResults";
+
+    private static final Pattern FILE_NAME = Pattern.compile("shard-(\\d+)-of-(\\d+)\\.results");
+
+    /**
+     * Set while the outermost suite runs its shard, so that the suites nested in it don't split it again.
+     */
+    private static final AtomicBoolean active = new AtomicBoolean();
+
+    /**
+     * Result files written by this JVM so far, so that the suites that run one after another
+     * add to the file instead of replacing it.
+     */
+    private static final Set<File> written = new HashSet<File>();
+
+    /**
+     * Outcome of the tests run by this suite.
+     */
+    private final ShardResults results = new ShardResults();
+
+    /**
+     * 1-based.
+     */
+    private final int index;
+    private final int count;
+
+    public Shard(int index, int count) {
+        if(count<1 || index<1 || index>count)
+            throw new IllegalArgumentException("Invalid shard: "+index+"/"+count);
+        this.index = index;
+        this.count = count;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public String toString() {
+        return index+"/"+count;
+    }
+
+    /**
+     * Parses "i/N".
+     */
+    public static Shard parse(String spec) {
+        int idx = spec.indexOf('/');
+        if(idx<0)
+            throw new IllegalArgumentException("Expected i/N but got "+spec);
+        try {
+            return new Shard(Integer.parseInt(spec.substring(0,idx).trim()),Integer.parseInt(spec.substring(idx+1).trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected i/N but got "+spec);
+        }
+    }
+
+    /**
+     * Returns the shard specified by the system property.
+     *
+     * @return
+     *      null if the system property isn't set.
+     */
+    public static Shard getDefault() {
+        String v = System.getProperty(PROPERTY);
+        if(v==null || v.length()==0)
+            return null;
+        try {
+            return parse(v);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring malformed "+PROPERTY+"="+v);
+            return null;
+        }
+    }
+
+    /**
+     * Called by a suite when it starts running.
+     *
+     * @return
+     *      The shard to run, if the caller is the outermost suite in the shard mode.
+     *      The caller then needs to call {@link #end()} once it's done. Otherwise null.
+     */
+    public static Shard begin() {
+        Shard s = getDefault();
+        if(s==null || !active.compareAndSet(false,true))
+            return null;
+        return s;
+    }
+
+    /**
+     * Returns true while a shard is being run.
+     */
+    public static boolean isActive() {
+        return active.get();
+    }
+
+    /**
+     * Called by the outermost suite when it's done with the shard.
+     * Writes the results, if requested by the system property. If an earlier suite in this JVM
+     * wrote the same file, the results are added to it, as {@link ShardResults#record} does.
+     */
+    public void end() {
+        try {
+            String dir = System.getProperty(RESULTS_PROPERTY);
+            if(dir!=null && dir.length()>0) {
+                File f = new File(dir,getFileName()).getAbsoluteFile();
+                try {
+                    synchronized (written) {
+                        ShardResults r = results;
+                        if(written.contains(f) && f.exists()) {
+                            r = ShardResults.load(f);
+                            r.addAll(results);
+                        }
+                        r.save(f);
+                        written.add(f);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Failed to save the shard results to "+f+": "+e);
+                }
+            }
+        } finally {
+            active.set(false);
+        }
+    }
+
+    /**
+     * Records the outcome of a test in this shard.
+     */
+    public void record(String name, long ms, boolean failed) {
+        results.record(name,ms,failed);
+    }
+
+    String getFileName() {
+        return "shard-"+index+"-of-"+count+".results";
+    }
+
+    /**
+     * The reverse of {@link #getFileName()}.
+     *
+     * @return
+     *      null if the name isn't that of shard results.
+     */
+    static Shard fromFileName(String name) {
+        Matcher m = FILE_NAME.matcher(name);
+        if(!m.matches())
+            return null;
+        try {
+            return new Shard(Integer.parseInt(m.group(1)),Integer.parseInt(m.group(2)));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Picks the tests of this shard.
+     *
+     * @param names
+     *      Names of the tests, in the same order.
+     * @param durations
+     *      Expected durations of the tests, in the same order.
+     */
+    public <T> List<T> select(List<T> tests, List<String> names, long[] durations) {
+        int[] plan = ShardPlanner.plan(names.toArray(new String[names.size()]),durations,count);
+        List<T> r = new ArrayList<T>();
+        long mine=0, total=0;
+        for( int i=0; i<plan.length; i++ ) {
+            total += Math.max(0,durations[i]);
+            if(plan[i]==index-1) {
+                r.add(tests.get(i));
+                mine += Math.max(0,durations[i]);
+            }
+        }
+        System.err.println("Shard "+this+": running "+r.size()+" of "+tests.size()
+            +" tests, estimated "+mine+"ms of "+total+"ms");
+        return r;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String shard=null, resultsDir=null, merge=null, history=null;
+        List<String> classes = new ArrayList<String>();
+        for( int i=0; i<args.length; i++ ) {
+            String a = args[i];
+            if(i+1<args.length && a.equals("--shard"))
+                shard = args[++i];
+            else if(i+1<args.length && a.equals("--results"))
+                resultsDir = args[++i];
+            else if(i+1<args.length && a.equals("--merge"))
+                merge = args[++i];
+            else if(i+1<args.length && a.equals("--history"))
+                history = args[++i];
+            else
+                classes.add(a);
+        }
+
+        if(merge!=null) {
+            System.exit(merge(new File(merge),history));
+        }
+
+        if(shard==null || classes.isEmpty()) {
+            System.err.println("Usage: java "+Shard.class.getName()+" --shard i/N [--results dir] class...");
+            System.err.println("       java "+Shard.class.getName()+" --merge dir [--history file]");
+            System.exit(2);
+        }
+        parse(shard); // fail early if malformed
+        System.setProperty(PROPERTY,shard);
+        if(resultsDir!=null)
+            System.setProperty(RESULTS_PROPERTY,resultsDir);
+
+        Class<?>[] cs = new Class<?>[classes.size()];
+        for( int i=0; i<cs.length; i++ )
+            cs[i] = Class.forName(classes.get(i));
+        JUnitCore core = new JUnitCore();
+        core.addListener(new Printer(System.out));
+        Result r = core.run(cs);
+        System.exit(r.wasSuccessful() ? 0 : 1);
+    }
+
+    /**
+     * Prints the failures and the summary of a shard run by {@link #main(String[])}.
+     */
+    private static final class Printer extends RunListener {
+        private final PrintStream out;
+
+        Printer(PrintStream out) {
+            this.out = out;
+        }
+
+        public void testFailure(Failure failure) {
+            out.println("FAIL "+failure.getTestHeader());
+            out.print(failure.getTrace());
+        }
+
+        public void testRunFinished(Result result) {
+            out.println("Tests run: "+result.getRunCount()+", Failures: "+result.getFailureCount()
+                +", Ignored: "+result.getIgnoreCount()+", Time: "+result.getRunTime()+"ms");
+        }
+    }
+
+    /**
+     * Merges the shard results in the given directory.
+     *
+     * @return
+     *      The exit code: 0 if all the tests passed, 1 if some failed, 2 if the results can't be merged.
+     */
+    private static int merge(File dir, String historyFile) {
+        ShardResults merged;
+        try {
+            merged = ShardResults.merge(dir);
+            merged.save(new File(dir,ShardResults.MERGED));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        }
+
+        TestHistory history = historyFile!=null ? new TestHistory(new File(historyFile)) : TestHistory.getDefault();
+        if(history!=null) {
+            merged.recordTo(history);
+            history.save();
+        }
+
+        List<String> failures = merged.getFailures();
+        System.out.println(merged.size()+" tests, "+failures.size()+" failed");
+        for( String f : failures )
+            System.out.println("  "+f);
+        return failures.isEmpty() ? 0 : 1;
+    }
+}
@@ -0,0 +1,97 @@
+package org.kohsuke.junit;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Splits tests into shards of about the same total duration, so that
+ * machines that run one shard each finish at about the same time.
+ *
+ * <p>
+ * This is the "longest processing time first" heuristic: tests are taken
+ * longest first, and each goes to the shard with the least work so far.
+ * The result is never worse than 4/3 of the optimum. Tests of the same name
+ * are kept together as one, since {@link ShardResults} tells tests apart by name.
+ *
+ * <p>
+ * The plan only depends on the names and the durations, so every process
+ * that plans the same suite with the same history comes up with the same shards.
+ */
+public final class ShardPlanner {
+    private ShardPlanner() {}
+
+    /**
+     * Assigns each test to a shard.
+     *
+     * @param names
+     *      Names of the tests, which break ties between tests of the same duration.
+     *      Tests of the same name are assigned to the same shard.
+     * @param durations
+     *      Expected durations of the tests, in the same order.
+     * @param n
+     *      Number of shards.
+     * @return
+     *      The shard of each test, between 0 and n-1, in the same order as the names.
+     */
+    public static int[] plan(final String[] names, final long[] durations, int n) {
+        if(names.length!=durations.length)
+            throw new IllegalArgumentException();
+        if(n<1)
+            throw new IllegalArgumentException("Number of shards must be positive: "+n);
+
+        // group the tests by name, adding up the durations
+        final Map<String,Integer> groups = new HashMap<String,Integer>();
+        int[] group = new int[names.length];
+        final long[] loads = new long[names.length];
+        for( int i=0; i<names.length; i++ ) {
+            Integer g = groups.get(names[i]);
+            if(g==null) {
+                g = groups.size();
+                groups.put(names[i],g);
+                loads[g] = durations[i];
+            } else {
+                loads[g] = Math.max(0,loads[g])+Math.max(0,durations[i]);
+            }
+            group[i] = g;
+        }
+        final String[] groupNames = new String[groups.size()];
+        for( Map.Entry<String,Integer> e : groups.entrySet() )
+            groupNames[e.getValue()] = e.getKey();
+
+        Integer[] order = new Integer[groupNames.length];
+        for( int i=0; i<order.length; i++ )
+            order[i] = i;
+        Arrays.sort(order,new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int r = Long.compare(loads[b],loads[a]);
+                return r!=0 ? r : groupNames[a].compareTo(groupNames[b]);
+            }
+        });
+
+        // shards as {load, index}, least loaded first, and the lower index if loads are the same
+        PriorityQueue<long[]> shards = new PriorityQueue<long[]>(n,new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                int r = Long.compare(a[0],b[0]);
+                return r!=0 ? r : Long.compare(a[1],b[1]);
+            }
+        });
+        for( int i=0; i<n; i++ )
+            shards.add(new long[]{0,i});
+
+        int[] shardOf = new int[groupNames.length];
+        for( int g : order ) {
+            long[] s = shards.poll();
+            shardOf[g] = (int)s[1];
+            s[0] += Math.max(0,loads[g]);
+            shards.add(s);
+        }
+
+        int[] plan = new int[names.length];
+        for( int i=0; i<names.length; i++ )
+            plan[i] = shardOf[group[i]];
+        return plan;
+    }
+}
@@ -0,0 +1,184 @@
+package org.kohsuke.junit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Outcome of the tests run by a {@link Shard}, or of all the shards once merged.
+ *
+ * <p>
+ * Stored as a properties file, where the key is the name of a test (as in {@link TestHistory})
+ * and the value is "<i>duration in ms</i> passed" or "<i>duration in ms</i> failed".
+ */
+public final class ShardResults {
+    /**
+     * Name of the merged file in the results directory.
+     */
+    public static final String MERGED = "merged.results";
+
+    private static final class Result {
+        final long duration;
+        final boolean failed;
+
+        Result(long duration, boolean failed) {
+            this.duration = duration;
+            this.failed = failed;
+        }
+    }
+
+    private final Map<String,Result> results = new TreeMap<String,Result>();
+
+    /**
+     * Records the outcome of a test. If a test of the same name was already recorded,
+     * as happens when the same class runs in more than one suite, the durations are
+     * added up, and the test is considered failed if either of them failed.
+     */
+    public synchronized void record(String name, long ms, boolean failed) {
+        Result old = results.get(name);
+        if(old!=null)
+            results.put(name,new Result(old.duration+ms,old.failed || failed));
+        else
+            results.put(name,new Result(ms,failed));
+    }
+
+    /**
+     * Records all the given results, as {@link #record(String, long, boolean)} does.
+     */
+    public void addAll(ShardResults that) {
+        Map<String,Result> copy;
+        synchronized (that) {
+            copy = new TreeMap<String,Result>(that.results);
+        }
+        for( Map.Entry<String,Result> e : copy.entrySet() )
+            record(e.getKey(),e.getValue().duration,e.getValue().failed);
+    }
+
+    public synchronized int size() {
+        return results.size();
+    }
+
+    public synchronized int failureCount() {
+        int n=0;
+        for( Result r : results.values() )
+            if(r.failed)
+                n++;
+        return n;
+    }
+
+    /**
+     * Returns the names of the failed tests.
+     */
+    public synchronized List<String> getFailures() {
+        List<String> r = new ArrayList<String>();
+        for( Map.Entry<String,Result> e : results.entrySet() )
+            if(e.getValue().failed)
+                r.add(e.getKey());
+        return r;
+    }
+
+    /**
+     * Feeds the results to the history, so that the next plan reflects this run.
+     */
+    public synchronized void recordTo(TestHistory history) {
+        for( Map.Entry<String,Result> e : results.entrySet() )
+            history.record(e.getKey(),e.getValue().duration,e.getValue().failed);
+    }
+
+    public static ShardResults load(File file) throws IOException {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+
+        ShardResults r = new ShardResults();
+        for( String name : props.stringPropertyNames() ) {
+            String[] tokens = props.getProperty(name).trim().split("\\s+");
+            try {
+                r.record(name,Long.parseLong(tokens[0]),tokens.length>1 && tokens[1].equals("failed"));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed entry in "+file+": "+name);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Writes the results to the given file, replacing it atomically.
+     */
+    public synchronized void save(File file) throws IOException {
+        Properties props = new Properties();
+        for( Map.Entry<String,Result> e : results.entrySet() )
+            props.setProperty(e.getKey(),e.getValue().duration+(e.getValue().failed ? " failed" : " passed"));
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        if(dir!=null)
+            dir.mkdirs();
+        File tmp = File.createTempFile(file.getName(),".tmp",dir);
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out,"parallel-junit shard results");
+        } finally {
+            out.close();
+        }
+        if(!tmp.renameTo(file)) {
+            file.delete();
+            if(!tmp.renameTo(file))
+                throw new IOException("Failed to rename "+tmp+" to "+file);
+        }
+    }
+
+    /**
+     * Merges the results of all the shards in the given directory.
+     *
+     * @throws IOException
+     *      if any shard is missing, if the shards disagree on how many there are,
+     *      or if a test was run by more than one shard.
+     */
+    public static ShardResults merge(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if(files==null)
+            throw new IOException("No such directory: "+dir);
+
+        int count = -1;
+        Map<Integer,File> shards = new TreeMap<Integer,File>();
+        for( File f : files ) {
+            Shard s = Shard.fromFileName(f.getName());
+            if(s==null)
+                continue;
+            if(count!=-1 && count!=s.getCount())
+                throw new IOException("Results of different splits are mixed in "+dir+": "+f.getName());
+            count = s.getCount();
+            shards.put(s.getIndex(),f);
+        }
+        if(count==-1)
+            throw new IOException("No shard results in "+dir);
+        for( int i=1; i<=count; i++ )
+            if(!shards.containsKey(i))
+                throw new IOException("Results of shard "+i+"/"+count+" are missing in "+dir);
+
+        ShardResults merged = new ShardResults();
+        Map<String,Integer> owners = new TreeMap<String,Integer>();
+        for( Map.Entry<Integer,File> e : shards.entrySet() ) {
+            ShardResults r = load(e.getValue());
+            for( Map.Entry<String,Result> t : r.results.entrySet() ) {
+                Integer other = owners.put(t.getKey(),e.getKey());
+                if(other!=null)
+                    throw new IOException(t.getKey()+" was run by both shard "+other+" and shard "+e.getKey());
+                merged.results.put(t.getKey(),t.getValue());
+            }
+        }
+        return merged;
+    }
+}
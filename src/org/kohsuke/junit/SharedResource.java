@@ -0,0 +1,57 @@
+package org.kohsuke.junit;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares that a test uses a resource shared with other tests, such as a port,
+ * a database, or a directory, so that {@link ParallelTestSuite} and {@code ParallelSuite}
+ * don't run too many of them at the same time.
+ *
+ * <p>
+ * For JUnit 3, this goes on a {@link junit.framework.TestCase} class or its test methods.
+ * For JUnit 4, this goes on a TestClass or its test methods, and the TestClass holds
+ * the resources while it runs. Put as many as needed:
+ *
+ * <pre>
+ * &#64;SharedResource("port 8080")
+ * &#64;SharedResource(value="database", permits=4)
+ * public class FooTest extends TestCase { ... }
+ * </pre>
+ *
+ * <p>
+ * A test that can't get its resources doesn't take a thread while it waits;
+ * other tests run in its place.
+ *
+ * @see ResourceLocks
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Inherited
+@Repeatable(SharedResource.List.class)
+public @interface SharedResource {
+    /**
+     * Name of the resource. Tests that use the same name share the resource.
+     */
+    String value();
+
+    /**
+     * Number of tests that can use the resource at the same time. The default is 1,
+     * which gives the test exclusive access. If tests disagree, the smallest number wins.
+     */
+    int permits() default 1;
+
+    /**
+     * Holds repeated {@link SharedResource}s.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.TYPE, ElementType.METHOD})
+    @Inherited
+    @interface List {
+        SharedResource[] value();
+    }
+}
@@ -0,0 +1,273 @@
+package org.kohsuke.junit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Remembers how long each test took in the past runs, and whether it failed
+ * the last time it ran, in a local file.
+ *
+ * <p>
+ * {@link ParallelTestSuite} and {@code ParallelSuite} use this to start the tests
+ * that failed last time first, so that a breakage that's not fixed yet is reported
+ * in seconds. The rest are started longest first, so that the run doesn't end with
+ * one worker finishing a long test while others sit idle. Putting the failed tests
+ * first can be turned off by setting the <tt>org.kohsuke.junit.failFirst</tt> system
+ * property to false.
+ *
+ * <p>
+ * Tests are identified by names. For JUnit 3, that's {@link Object#toString()}
+ * of a {@link junit.framework.TestCase} (such as "testFoo(org.acme.FooTest)"),
+ * and for JUnit 4, the display name of the {@code Description}.
+ *
+ * <p>
+ * The history is enabled by setting the <tt>org.kohsuke.junit.history</tt> system
+ * property to the file name.
+ */
+public final class TestHistory {
+    public static final String PROPERTY = "org.kohsuke.junit.history";
+
+    public static final String FAIL_FIRST_PROPERTY = "org.kohsuke.junit.failFirst";
+
+    private static TestHistory theDefault;
+
+    private final File file;
+
+    private static final class Entry {
+        /**
+         * Expected duration in milliseconds.
+         */
+        long duration;
+        /**
+         * When the test failed, if it failed the last time it ran. Otherwise 0.
+         */
+        long lastFailure;
+    }
+
+    private final Map<String,Entry> entries = new HashMap<String,Entry>();
+
+    private boolean failFirst = !"false".equals(System.getProperty(FAIL_FIRST_PROPERTY));
+
+    private boolean dirty;
+
+    /**
+     * Loads the history from the given file, if it exists.
+     */
+    public TestHistory(File file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Returns the history specified by the system property.
+     *
+     * @return
+     *      null if the system property isn't set.
+     */
+    public static synchronized TestHistory getDefault() {
+        String f = System.getProperty(PROPERTY);
+        if(f==null || f.length()==0)
+            return null;
+        if(theDefault==null || !theDefault.file.equals(new File(f)))
+            theDefault = new TestHistory(new File(f));
+        return theDefault;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isFailFirst() {
+        return failFirst;
+    }
+
+    /**
+     * Sets whether the tests that failed last time should be run first.
+     */
+    public void setFailFirst(boolean failFirst) {
+        this.failFirst = failFirst;
+    }
+
+    /**
+     * Returns the expected duration of the given test in milliseconds.
+     *
+     * @return
+     *      -1 if we don't know anything about this test.
+     */
+    public synchronized long getDuration(String name) {
+        Entry e = entries.get(name);
+        return e!=null ? e.duration : -1;
+    }
+
+    /**
+     * Returns when the given test failed, if it failed the last time it ran.
+     *
+     * @return
+     *      0 if the test passed the last time, or if we don't know anything about it.
+     */
+    public synchronized long getLastFailure(String name) {
+        Entry e = entries.get(name);
+        return e!=null ? e.lastFailure : 0;
+    }
+
+    /**
+     * Returns the average duration of all the tests we know of.
+     *
+     * @return
+     *      -1 if we don't know anything.
+     */
+    public synchronized long getAverageDuration() {
+        if(entries.isEmpty())
+            return -1;
+        long sum=0;
+        for( Entry e : entries.values() )
+            sum += e.duration;
+        return sum/entries.size();
+    }
+
+    /**
+     * Computes the {@link Priority} of the given test.
+     *
+     * @param defaultDuration
+     *      Duration to assume if we don't know anything about this test.
+     */
+    public synchronized Priority getPriority(String name, long defaultDuration) {
+        Entry e = entries.get(name);
+        if(e==null)
+            return new Priority(0,defaultDuration);
+        return new Priority(failFirst ? e.lastFailure : 0, e.duration);
+    }
+
+    /**
+     * Records the outcome of a test.
+     *
+     * <p>
+     * The expected duration is a moving average, so that a one-off slow run
+     * doesn't upset the order too much.
+     */
+    public synchronized void record(String name, long ms, boolean failed) {
+        Entry e = entries.get(name);
+        if(e==null) {
+            e = new Entry();
+            e.duration = ms;
+            entries.put(name,e);
+        } else {
+            e.duration = (e.duration+ms)/2;
+        }
+        e.lastFailure = failed ? System.currentTimeMillis() : 0;
+        dirty = true;
+    }
+
+    /**
+     * Order in which tests should be started.
+     *
+     * <p>
+     * Tests that failed the last time come first, the most recent failure first,
+     * followed by the rest in the descending order of their expected duration.
+     */
+    public static final class Priority implements Comparable<Priority> {
+        private final long lastFailure;
+        private final long duration;
+
+        public Priority(long lastFailure, long duration) {
+            this.lastFailure = lastFailure;
+            this.duration = duration;
+        }
+
+        /**
+         * Expected duration in milliseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * Priority of a group of tests that are run together.
+         */
+        public Priority plus(Priority that) {
+            return new Priority(Math.max(this.lastFailure,that.lastFailure), this.duration+that.duration);
+        }
+
+        public int compareTo(Priority that) {
+            if(this.lastFailure!=that.lastFailure)
+                return Long.compare(that.lastFailure,this.lastFailure);
+            return Long.compare(that.duration,this.duration);
+        }
+    }
+
+    private synchronized void load() {
+        if(!file.exists())
+            return;
+        Properties props = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to load the test history from "+file+": "+e);
+            return;
+        }
+
+        // the value is "<duration>" or "<duration> <last failure>"
+        for( String name : props.stringPropertyNames() ) {
+            try {
+                String[] tokens = props.getProperty(name).trim().split("\\s+");
+                Entry e = new Entry();
+                e.duration = Long.parseLong(tokens[0]);
+                if(tokens.length>1)
+                    e.lastFailure = Long.parseLong(tokens[1]);
+                entries.put(name,e);
+            } catch (NumberFormatException e) {
+                // ignore a corrupted entry
+            }
+        }
+    }
+
+    /**
+     * Writes the history back to the file, if anything has changed.
+     *
+     * <p>
+     * The file is replaced atomically, so a reader never sees a half-written file.
+     */
+    public synchronized void save() {
+        if(!dirty)
+            return;
+
+        Properties props = new Properties();
+        for( Map.Entry<String,Entry> e : entries.entrySet() ) {
+            Entry v = e.getValue();
+            props.setProperty(e.getKey(), v.lastFailure==0 ? String.valueOf(v.duration) : v.duration+" "+v.lastFailure);
+        }
+
+        try {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if(dir!=null)
+                dir.mkdirs();
+            File tmp = File.createTempFile(file.getName(),".tmp",dir);
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                props.store(out,"parallel-junit test history");
+            } finally {
+                out.close();
+            }
+            if(!tmp.renameTo(file)) {
+                file.delete();
+                if(!tmp.renameTo(file))
+                    throw new IOException("Failed to rename "+tmp+" to "+file);
+            }
+            dirty = false;
+        } catch (IOException e) {
+            System.err.println("Failed to save the test history to "+file+": "+e);
+        }
+    }
+}
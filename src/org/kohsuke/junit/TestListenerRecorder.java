@@ -0,0 +1,115 @@
+package org.kohsuke.junit;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestListener;
+
+/**
+ * Records the method calls to {@link TestListener}, and "replays" them later.
+ *
+ * <p>
+ * This is a specialized version of {@link MethodCallRecorder}. Instead of going through
+ * {@link java.lang.reflect.Proxy} and reflection, events are kept in a few arrays,
+ * so recording an event doesn't allocate a method call object and an argument array,
+ * and replaying it doesn't go through reflection.
+ *
+ * <p>
+ * Like {@link MethodCallRecorder}, this class is not thread-safe.
+ */
+public final class TestListenerRecorder implements TestListener {
+    private static final byte ADD_ERROR = 0;
+    private static final byte ADD_FAILURE = 1;
+    private static final byte START_TEST = 2;
+    private static final byte END_TEST = 3;
+
+    private byte[] kinds = new byte[8];
+    private Test[] tests = new Test[8];
+    private Throwable[] throwables = new Throwable[8];
+
+    /**
+     * Number of recorded events.
+     */
+    private int size;
+
+    public void addError(Test test, Throwable t) {
+        add(ADD_ERROR,test,t);
+    }
+
+    public void addFailure(Test test, AssertionFailedError t) {
+        add(ADD_FAILURE,test,t);
+    }
+
+    public void startTest(Test test) {
+        add(START_TEST,test,null);
+    }
+
+    public void endTest(Test test) {
+        add(END_TEST,test,null);
+    }
+
+    private void add(byte kind, Test test, Throwable t) {
+        if(size==kinds.length) {
+            int len = size*2;
+            byte[] k = new byte[len];
+            System.arraycopy(kinds,0,k,0,size);
+            kinds = k;
+            Test[] ts = new Test[len];
+            System.arraycopy(tests,0,ts,0,size);
+            tests = ts;
+            Throwable[] th = new Throwable[len];
+            System.arraycopy(throwables,0,th,0,size);
+            throwables = th;
+        }
+        kinds[size] = kind;
+        tests[size] = test;
+        throwables[size] = t;
+        size++;
+    }
+
+    /**
+     * Returns the number of recorded events.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of recorded addError/addFailure events.
+     */
+    public int failureCount() {
+        int n=0;
+        for( int i=0; i<size; i++ )
+            if(kinds[i]==ADD_ERROR || kinds[i]==ADD_FAILURE)
+                n++;
+        return n;
+    }
+
+    /**
+     * Replays the recorded method calls to the specified object.
+     *
+     * <p>
+     * If the given target object throws any exception while replaying
+     * the method calls, the replay will be aborted and the same exception
+     * will be thrown.
+     */
+    public void replay( TestListener target ) {
+        for( int i=0; i<size; i++ ) {
+            switch(kinds[i]) {
+            case ADD_ERROR:
+                target.addError(tests[i],throwables[i]);
+                break;
+            case ADD_FAILURE:
+                target.addFailure(tests[i],(AssertionFailedError)throwables[i]);
+                break;
+            case START_TEST:
+                target.startTest(tests[i]);
+                break;
+            case END_TEST:
+                target.endTest(tests[i]);
+                break;
+            default:
+                throw new AssertionError(kinds[i]);
+            }
+        }
+    }
+}
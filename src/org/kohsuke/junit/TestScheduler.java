@@ -0,0 +1,37 @@
+package org.kohsuke.junit;
+
+import junit.framework.Test;
+
+import java.util.List;
+
+/**
+ * Decides which {@link Test} each worker thread of {@link ParallelTestSuite} runs next.
+ *
+ * <p>
+ * A scheduler is prepared by {@link #start(List, int)} from the thread that runs
+ * the suite, and then {@link #next(int)} is called concurrently from all the worker threads.
+ *
+ * @see ParallelTestSuite#setScheduler(TestScheduler)
+ */
+public interface TestScheduler {
+    /**
+     * Prepares the scheduler for a new run.
+     *
+     * @param tests
+     *      {@link Test}s to be run, in the order they were added to the suite.
+     * @param nWorkers
+     *      Number of worker threads that will call {@link #next(int)}.
+     */
+    void start(List<Test> tests, int nWorkers);
+
+    /**
+     * Obtains the next {@link Test} to be run by the given worker.
+     *
+     * @param worker
+     *      Id of the calling worker thread. Normally between 0 and nWorkers-1,
+     *      but implementations should tolerate larger values.
+     * @return
+     *      null if there's no more test to run.
+     */
+    Test next(int worker);
+}
@@ -0,0 +1,107 @@
+package org.kohsuke.junit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+/**
+ * Works out the default number of worker threads for
+ * {@link ParallelTestSuite} and {@code ParallelSuite}.
+ *
+ * <p>
+ * By default, it's the number of CPUs this process can actually use, which takes
+ * the CPU quota of the container (cgroup v1 or v2) into account.
+ * This can be overridden by the <tt>org.kohsuke.junit.threads</tt> system property,
+ * whose value is either a number of threads ("8"), or a multiple of the CPUs ("1.5C").
+ */
+public final class ThreadCount {
+    public static final String PROPERTY = "org.kohsuke.junit.threads";
+
+    private ThreadCount() {}
+
+    /**
+     * Gets the default thread pool size.
+     */
+    public static int defaultThreadSize() {
+        String v = System.getProperty(PROPERTY);
+        if(v!=null && v.trim().length()>0) {
+            try {
+                return parse(v.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring malformed "+PROPERTY+"="+v);
+            }
+        }
+        return availableCpus();
+    }
+
+    private static int parse(String v) {
+        if(v.endsWith("C") || v.endsWith("c")) {
+            double f = Double.parseDouble(v.substring(0,v.length()-1));
+            return Math.max(1,(int)Math.round(f*availableCpus()));
+        }
+        int n = Integer.parseInt(v);
+        if(n<=0)
+            throw new NumberFormatException(v);
+        return n;
+    }
+
+    /**
+     * Number of CPUs this process can keep busy.
+     */
+    public static int availableCpus() {
+        int n = Runtime.getRuntime().availableProcessors();
+        // newer JVMs already take the quota into account, but older ones don't.
+        int quota = cpuQuota();
+        if(quota>0)
+            n = Math.min(n,quota);
+        return Math.max(n,1);
+    }
+
+    /**
+     * Reads the CPU quota imposed by the cgroup, rounded up.
+     *
+     * @return
+     *      -1 if there's no quota, or if it can't be determined.
+     */
+    static int cpuQuota() {
+        // cgroup v2: "<quota> <period>" or "max <period>"
+        String[] max = read("/sys/fs/cgroup/cpu.max");
+        if(max!=null && max.length==2)
+            return quota(max[0],max[1]);
+
+        // cgroup v1
+        for( String dir : new String[]{"/sys/fs/cgroup/cpu","/sys/fs/cgroup/cpu,cpuacct"} ) {
+            String[] quota = read(dir+"/cpu.cfs_quota_us");
+            String[] period = read(dir+"/cpu.cfs_period_us");
+            if(quota!=null && period!=null)
+                return quota(quota[0],period[0]);
+        }
+        return -1;
+    }
+
+    private static int quota(String quota, String period) {
+        try {
+            long q = Long.parseLong(quota);
+            long p = Long.parseLong(period);
+            if(q<=0 || p<=0)
+                return -1;
+            return (int)((q+p-1)/p);
+        } catch (NumberFormatException e) {
+            return -1;  // such as "max"
+        }
+    }
+
+    private static String[] read(String path) {
+        File f = new File(path);
+        if(!f.isFile())
+            return null;
+        try {
+            return new String(Files.readAllBytes(f.toPath()),Charset.forName("US-ASCII")).trim().split("\\s+");
+        } catch (IOException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+}
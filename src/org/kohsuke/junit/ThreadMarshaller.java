@@ -4,13 +4,19 @@ import java.lang.reflect.Proxy;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.InvocationTargetException;
-import java.util.LinkedList;
-import java.util.List;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Converts a method call one one object by arbitrary thread
  * into the equivalent method call by the designated "main" thread.
  *
+ * <p>
+ * By default, the calling thread blocks until the main thread completes the call.
+ * In the {@linkplain #setAsync(boolean) asynchronous mode}, calls to methods that
+ * return void are merely queued, and the calling thread carries on right away.
+ *
  * @author Kohsuke Kawaguchi (kk@kohsuke.org)
  */
 public final class ThreadMarshaller implements InvocationHandler {
@@ -27,8 +33,26 @@ public final class ThreadMarshaller implements InvocationHandler {
 
     /**
      * Queue of {@link MethodCall} objects.
+     * Filled by any thread, and drained by the main thread.
+     */
+    private final MpscQueue<MethodCall> callQueue = new MpscQueue<MethodCall>();
+
+    /**
+     * The thread that's executing {@link #run()}, or null if no thread is doing so yet.
+     */
+    private volatile Thread mainThread;
+
+    /**
+     * Put into the queue by {@link #finish()} to signal the completion.
+     */
+    private final MethodCall finishMarker = new MethodCall(null,null);
+
+    private volatile boolean async;
+
+    /**
+     * The first exception thrown by an asynchronous call that hasn't been reported yet.
      */
-    private final List callQueue = new LinkedList();
+    private final AtomicReference<Throwable> asyncFailure = new AtomicReference<Throwable>();
 
     public ThreadMarshaller( Class intf, Object realObject ) {
         this( new Class[]{intf}, realObject );
@@ -43,16 +67,37 @@ public final class ThreadMarshaller implements InvocationHandler {
         return proxy;
     }
 
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * Turns on/off the asynchronous mode.
+     *
+     * <p>
+     * In the asynchronous mode, calls to methods that return void don't wait for
+     * the main thread to execute them. Calls are still executed in the order they are made,
+     * and {@link #flush()} can be used to wait for them to complete.
+     *
+     * <p>
+     * Since the caller is long gone by the time such a call is executed,
+     * an exception thrown from it is instead rethrown from the next {@link #flush()}
+     * (from whichever thread calls it), or from {@link #run()} when it returns.
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
         MethodCall mc = new MethodCall(method,args);
-        callQueue.add(mc);
+        mc.async = async && method.getReturnType()==void.class;
+        callQueue.offer(mc);
+        LockSupport.unpark(mainThread);     // let the main thread know that there's a new item
 
-        synchronized(mc) {
-            synchronized(this) {
-                this.notify();      // let the main thread know that there's a new item
-            }
-            mc.wait();  // wait for the method call to complete
-        }
+        if(mc.async)
+            return null;
+
+        mc.await();  // wait for the method call to complete
 
         if(mc.exception!=null)
             throw mc.exception;
@@ -67,34 +112,73 @@ public final class ThreadMarshaller implements InvocationHandler {
      * <p>
      * This method blocks until the {@link #finish()} method is called.
      * While blocking, this thread will invoke methods on the marshalled object.
+     * All the method calls that are queued up are processed in one go before
+     * this thread goes back to sleep.
      */
-    public synchronized void run() {
-        while(true) {
-            try {
-                this.wait();    // wait for new incoming method call
-            } catch (InterruptedException e) {
-                // not sure if this may ever happen
-                e.printStackTrace();
+    public void run() {
+        mainThread = Thread.currentThread();
+        try {
+            while(true) {
+                MethodCall mc = callQueue.poll();
+                if(mc==null) {
+                    // wait for new incoming method call.
+                    // a call that arrives before we park leaves a permit, so it won't be missed.
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                if(mc==finishMarker)
+                    break;  // signals the completion
+
+                if(mc.method!=null)
+                    mc.execute();
+                if(mc.async) {
+                    if(mc.exception!=null)
+                        asyncFailure.compareAndSet(null,mc.exception);
+                } else
+                    mc.done();  // let the caller thread know that the invocation is done
             }
-            MethodCall mc = (MethodCall)callQueue.remove(0);
+        } finally {
+            mainThread = null;
+        }
 
-            if(mc==null)
-                break;  // signals the completion
+        reportAsyncFailure();
+    }
 
-            synchronized(mc) {
-                mc.execute();
-                mc.notify();    // let the caller thread know that the invocation is done
-            }
+    /**
+     * Blocks until all the calls made so far (by any thread) are executed by the main thread.
+     *
+     * <p>
+     * If any of the asynchronous calls has thrown an exception, it's rethrown from here.
+     */
+    public void flush() {
+        if(Thread.currentThread()!=mainThread) {
+            MethodCall barrier = new MethodCall(null,null);
+            callQueue.offer(barrier);
+            LockSupport.unpark(mainThread);
+            barrier.await();
         }
+        reportAsyncFailure();
+    }
+
+    private void reportAsyncFailure() {
+        Throwable t = asyncFailure.getAndSet(null);
+        if(t==null)
+            return;
+        if(t instanceof RuntimeException)
+            throw (RuntimeException)t;
+        if(t instanceof Error)
+            throw (Error)t;
+        throw new UndeclaredThrowableException(t);
     }
 
     /**
      * Signals that other threads are done with this marshaller, and
      * the main thread can resume its execution.
      */
-    public synchronized void finish() {
-        callQueue.add(null);
-        this.notify();
+    public void finish() {
+        callQueue.offer(finishMarker);
+        LockSupport.unpark(mainThread);
     }
 
     class MethodCall {
@@ -102,15 +186,49 @@ public final class ThreadMarshaller implements InvocationHandler {
         Method method;
         Object[] args;
 
+        /**
+         * True if the caller isn't waiting for the completion.
+         */
+        boolean async;
+
         // out
         Throwable exception;
         Object result;
 
+        /**
+         * The thread that made the call.
+         */
+        private final Thread caller = Thread.currentThread();
+
+        /**
+         * Set to true once the main thread is done with the call.
+         */
+        private volatile boolean done;
+
         MethodCall(Method method, Object[] args) {
             this.method = method;
             this.args = args;
         }
 
+        /**
+         * Blocks the caller until {@link #done()} is called.
+         */
+        void await() {
+            boolean interrupted = false;
+            while(!done) {
+                LockSupport.park(this);
+                if(Thread.interrupted())
+                    interrupted = true;
+            }
+            if(interrupted)
+                caller.interrupt(); // restore the status
+        }
+
+        void done() {
+            done = true;
+            LockSupport.unpark(caller);
+        }
+
         void execute() {
             try {
                 result = method.invoke(real,args);
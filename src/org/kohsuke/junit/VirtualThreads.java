@@ -0,0 +1,121 @@
+package org.kohsuke.junit;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Creates virtual threads on JVMs that have them (Java 21 and later),
+ * without requiring such a JVM to compile or run this library.
+ *
+ * <p>
+ * The virtual-thread mode of {@link ParallelTestSuite} and {@code ParallelSuite}
+ * is turned on by the <tt>org.kohsuke.junit.virtualThreads</tt> system property,
+ * whose value is the maximum number of tests that run at the same time
+ * ("true" means {@value #DEFAULT_LIMIT}).
+ */
+public final class VirtualThreads {
+    public static final String PROPERTY = "org.kohsuke.junit.virtualThreads";
+
+    public static final int DEFAULT_LIMIT = 256;
+
+    /**
+     * Thread.ofVirtual(), Thread.Builder.name(String), and Thread.Builder.unstarted(Runnable),
+     * or null if virtual threads aren't available.
+     */
+    private static final Method OF_VIRTUAL, NAME, UNSTARTED;
+
+    private static boolean warned;
+
+    static {
+        Method ofVirtual = null, name = null, unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name",String.class);
+            unstarted = builder.getMethod("unstarted",Runnable.class);
+            // on Java 19 and 20, the methods are there but throw UnsupportedOperationException
+            // unless the preview features are enabled, so see if they actually work
+            unstarted.invoke(name.invoke(ofVirtual.invoke(null),"probe"),new Runnable() {
+                public void run() {}
+            });
+        } catch (NoSuchMethodException e) {
+            ofVirtual = null;
+        } catch (ClassNotFoundException e) {
+            ofVirtual = null;
+        } catch (IllegalAccessException e) {
+            ofVirtual = null;
+        } catch (InvocationTargetException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    private VirtualThreads() {}
+
+    /**
+     * Returns true if this JVM supports virtual threads.
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL!=null;
+    }
+
+    /**
+     * Returns the concurrency limit requested by the system property.
+     *
+     * @return
+     *      0 if the virtual-thread mode isn't requested.
+     */
+    public static int defaultLimit() {
+        String v = System.getProperty(PROPERTY);
+        if(v==null || v.equals("false"))
+            return 0;
+        if(v.equals("true") || v.length()==0)
+            return DEFAULT_LIMIT;
+        try {
+            return Math.max(0,Integer.parseInt(v));
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring malformed "+PROPERTY+"="+v);
+            return 0;
+        }
+    }
+
+    /**
+     * Creates a new unstarted virtual thread.
+     *
+     * <p>
+     * If the JVM doesn't support virtual threads, a platform thread is created instead,
+     * so that the virtual-thread mode degrades to a large thread pool.
+     */
+    public static Thread newThread(String name, Runnable r) {
+        if(OF_VIRTUAL!=null) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                builder = NAME.invoke(builder,name);
+                return (Thread)UNSTARTED.invoke(builder,r);
+            } catch (IllegalAccessException e) {
+                throw new IllegalAccessError(e.getMessage());
+            } catch (InvocationTargetException e) {
+                Throwable t = e.getTargetException();
+                if(t instanceof RuntimeException)
+                    throw (RuntimeException)t;
+                if(t instanceof Error)
+                    throw (Error)t;
+                throw new Error(t);
+            }
+        }
+
+        return new Thread(r,name);
+    }
+
+    /**
+     * Prints a warning (only once) if this JVM doesn't support virtual threads.
+     */
+    public static synchronized void warnIfUnsupported() {
+        if(!isSupported() && !warned) {
+            warned = true;
+            System.err.println("Virtual threads are not available in this JVM. Using platform threads instead");
+        }
+    }
+}
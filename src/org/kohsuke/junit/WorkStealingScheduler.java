@@ -0,0 +1,111 @@
+package org.kohsuke.junit;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link TestScheduler} that gives each worker its own deque of tests,
+ * and lets idle workers steal from the others.
+ *
+ * <p>
+ * Tests are dealt round-robin to the workers up front. A worker takes tests
+ * from the head of its own deque, and when that runs dry, it steals from the
+ * tail of someone else's. Thus workers don't contend with each other until
+ * the very end of the run.
+ *
+ * <p>
+ * Plain {@link TestSuite}s nested in the suite are not run as a whole.
+ * Instead, when a worker picks one up, its children are pushed to the head of
+ * the worker's deque, so that other workers can steal them. Subclasses of
+ * {@link TestSuite} (including {@link ParallelTestSuite}) are left intact, since
+ * they may have their own idea about how to run their children.
+ */
+public class WorkStealingScheduler implements TestScheduler {
+    private final boolean splitSuites;
+
+    private List<Deque<Test>> queues;
+
+    /**
+     * Number of tests that are in the queues or being split,
+     * IOW the tests that haven't been handed out to workers yet.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    public WorkStealingScheduler() {
+        this(true);
+    }
+
+    /**
+     * @param splitSuites
+     *      If false, nested {@link TestSuite}s are run as a whole by a single worker.
+     */
+    public WorkStealingScheduler(boolean splitSuites) {
+        this.splitSuites = splitSuites;
+    }
+
+    public void start(List<Test> tests, int nWorkers) {
+        int n = Math.max(nWorkers,1);
+        List<Deque<Test>> queues = new ArrayList<Deque<Test>>(n);
+        for( int i=0; i<n; i++ )
+            queues.add(new ConcurrentLinkedDeque<Test>());
+        for( int i=0; i<tests.size(); i++ )
+            queues.get(i%n).addLast(tests.get(i));
+
+        pending.set(tests.size());
+        this.queues = queues;
+    }
+
+    public Test next(int worker) {
+        Deque<Test> own = queues.get(worker%queues.size());
+
+        while(true) {
+            Test t = own.pollFirst();
+            if(t==null)
+                t = steal(worker);
+            if(t==null) {
+                if(pending.get()==0)
+                    return null;
+                // someone is in the middle of splitting a suite. its children will show up shortly
+                Thread.yield();
+                continue;
+            }
+
+            if(isSplittable(t)) {
+                TestSuite suite = (TestSuite)t;
+                int n = suite.testCount();
+                pending.addAndGet(n);
+                // push in the reverse order so that they are run in the order they are added
+                for( int i=n-1; i>=0; i-- )
+                    own.addFirst(suite.testAt(i));
+                pending.decrementAndGet();
+                continue;
+            }
+
+            pending.decrementAndGet();
+            return t;
+        }
+    }
+
+    /**
+     * Steals a test from the tail of other workers' deques.
+     */
+    private Test steal(int worker) {
+        int len = queues.size();
+        for( int i=1; i<len; i++ ) {
+            Test t = queues.get((worker+i)%len).pollLast();
+            if(t!=null)
+                return t;
+        }
+        return null;
+    }
+
+    private boolean isSplittable(Test t) {
+        return splitSuites && t.getClass()==TestSuite.class;
+    }
+}
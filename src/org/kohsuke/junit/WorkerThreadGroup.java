@@ -4,7 +4,20 @@ package org.kohsuke.junit;
  * @author Kohsuke Kawaguchi
  */
 class WorkerThreadGroup extends ThreadGroup {
-    public WorkerThreadGroup(int id) {
+    /**
+     * The worker whose threads belong to this group.
+     */
+    private final Object owner;
+
+    public WorkerThreadGroup(int id, Object owner) {
         super("Parallel JUnit Worker Thread "+id);
+        this.owner = owner;
+    }
+
+    /**
+     * Returns the current state of the worker, which tags its lines in the streaming mode.
+     */
+    public String toString() {
+        return owner.toString();
     }
 }
@@ -0,0 +1,149 @@
+package org.kohsuke.junit4;
+
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.runner.notification.StoppedByUserException;
+import org.kohsuke.junit.AdaptiveThreadCount;
+
+/**
+ * {@link Executor} that runs tasks on the {@link SharedPool}, but no more than
+ * a given number of them at the same time.
+ *
+ * <p>
+ * Tasks are queued here, and up to {@code limit} "lanes" are forked into the pool
+ * to drain the queue. A lane exits when it finds the queue empty, and a new one is
+ * forked when a task arrives and there's room.
+ *
+ * <p>
+ * {@link #help()} lets a pool thread that is about to wait run the lanes it has
+ * forked in place, if no other thread has stolen them yet.
+ */
+final class LaneExecutor implements Executor {
+	private final ForkJoinPool pool = SharedPool.get();
+
+	private final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+
+	private final AtomicInteger lanes = new AtomicInteger();
+
+	private volatile int limit;
+
+	/**
+	 * Lanes forked by pool threads, to be run in {@link #help()}.
+	 */
+	private final Deque<Lane> forked = new ConcurrentLinkedDeque<Lane>();
+
+	/**
+	 * If non-null, lanes register their threads to it.
+	 */
+	volatile AdaptiveThreadCount controller;
+
+	LaneExecutor(int limit) {
+		this.limit = Math.max(1, limit);
+	}
+
+	int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Changes the maximum number of tasks that run at the same time.
+	 * Lanes beyond the new limit exit once they are done with the current task.
+	 */
+	void setLimit(int limit) {
+		this.limit = Math.max(1, limit);
+		if (!queue.isEmpty())
+			startLane();
+	}
+
+	public void execute(Runnable r) {
+		queue.add(r);
+		startLane();
+	}
+
+	/**
+	 * Forks a new lane if we are under the limit.
+	 */
+	private void startLane() {
+		while (true) {
+			int n = lanes.get();
+			if (n >= limit)
+				return;
+			if (lanes.compareAndSet(n, n + 1))
+				break;
+		}
+
+		Lane l = new Lane();
+		if (SharedPool.isPoolThread()) {
+			l.fork();
+			forked.add(l);
+		} else {
+			pool.execute(l);
+		}
+	}
+
+	/**
+	 * Runs the lanes forked from this thread that haven't been picked up by
+	 * other threads yet, if this is a pool thread. Called before waiting for the tasks.
+	 */
+	void help() {
+		// newest first, since that's what's on top of our work queue
+		Lane l;
+		while ((l = forked.pollLast()) != null) {
+			if (l.tryUnfork())
+				l.invoke();
+		}
+	}
+
+	private final class Lane extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute() {
+			Thread self = Thread.currentThread();
+			AdaptiveThreadCount c = controller;
+			if (c != null)
+				c.register(self);
+			try {
+				while (true) {
+					Runnable r = null;
+					if (lanes.get() <= limit)
+						r = queue.poll();
+					if (r == null) {
+						lanes.decrementAndGet();
+						// a task might have been queued while we were leaving
+						if (queue.isEmpty() || !rejoin())
+							return;
+						continue;
+					}
+					try {
+						r.run();
+					} catch (StoppedByUserException e) {
+						// a test method that was about to start when the run got cancelled
+					} catch (Throwable t) {
+						t.printStackTrace();
+					}
+				}
+			} finally {
+				if (c != null)
+					c.unregister(self);
+			}
+		}
+
+		private boolean rejoin() {
+			while (true) {
+				int n = lanes.get();
+				if (n >= limit)
+					return false;
+				if (lanes.compareAndSet(n, n + 1))
+					return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package org.kohsuke.junit4;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.runners.model.RunnerScheduler;
+import org.kohsuke.junit.ParallelPrintStream;
+
+/**
+ * {@link RunnerScheduler} that runs the test methods of a TestClass
+ * on the {@link Executor} of the enclosing {@link ParallelSuite}.
+ *
+ * <p>
+ * {@link #finished()} is called from the thread that runs the TestClass,
+ * which is itself a thread of the same {@link Executor}. Instead of just waiting
+ * there, that thread runs the methods that no other thread has picked up yet.
+ * Thus a TestClass always makes progress even when all the threads are taken
+ * by TestClasses waiting for their methods.
+ *
+ * <p>
+ * Since {@link #finished()} returns only after all the methods are done,
+ * <tt>@AfterClass</tt> still runs after all of them.
+ */
+final class MethodScheduler implements RunnerScheduler {
+	private final Executor executor;
+
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Number of methods scheduled but not completed yet.
+	 */
+	private int remaining;
+
+	/**
+	 * Picks up one method from the queue, if any is left.
+	 */
+	private final Runnable helper = new Runnable() {
+		public void run() {
+			Runnable r = tasks.poll();
+			if (r != null)
+				execute(r);
+		}
+	};
+
+	MethodScheduler(Executor executor) {
+		this.executor = executor;
+	}
+
+	public void schedule(final Runnable childStatement) {
+		synchronized (this) {
+			remaining++;
+		}
+		// the output goes to the TestClass no matter which thread runs the method
+		final Object key = ParallelPrintStream.getBoundKey();
+		tasks.add(new Runnable() {
+			public void run() {
+				Object old = ParallelPrintStream.bind(key);
+				try {
+					childStatement.run();
+				} finally {
+					ParallelPrintStream.bind(old);
+				}
+			}
+		});
+		executor.execute(helper);
+	}
+
+	public void finished() {
+		Runnable r;
+		while ((r = tasks.poll()) != null)
+			execute(r);
+
+		// wait for the methods that other threads are running.
+		// if this is a thread of the shared pool, the pool can make up for it meanwhile
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+						public boolean block() throws InterruptedException {
+							synchronized (MethodScheduler.this) {
+								while (remaining > 0)
+									MethodScheduler.this.wait();
+							}
+							return true;
+						}
+
+						public boolean isReleasable() {
+							synchronized (MethodScheduler.this) {
+								return remaining == 0;
+							}
+						}
+					});
+					return;
+				} catch (InterruptedException e) {
+					// @AfterClass must not run while methods are still running, so keep waiting
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private void execute(Runnable r) {
+		try {
+			r.run();
+		} finally {
+			synchronized (this) {
+				if (--remaining == 0)
+					notifyAll();
+			}
+		}
+	}
+}
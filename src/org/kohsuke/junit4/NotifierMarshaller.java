@@ -0,0 +1,371 @@
+package org.kohsuke.junit4;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.AssumptionViolatedException;
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runner.notification.StoppedByUserException;
+import org.kohsuke.junit.CapturedOutput;
+
+/**
+ * Delivers the events of TestClasses run on other threads to a {@link RunNotifier}
+ * on the thread that runs the {@link ParallelSuite}, like {@link org.kohsuke.junit.ThreadMarshaller}
+ * does for JUnit 3.
+ *
+ * <p>
+ * Each TestClass gets its own {@link Buffer}, which records the events instead of sending them.
+ * When the TestClass is done, the whole batch is queued at once, and the suite thread replays
+ * it to the real notifier. Thus listeners, which are often not thread-safe, are called from a
+ * single thread, and the events of one TestClass are never interleaved with another's.
+ *
+ * <p>
+ * Within a TestClass, the events of each test are kept together even if the test methods
+ * run in parallel.
+ *
+ * <p>
+ * The output captured from a TestClass travels with its batch, and is written just before its events.
+ */
+final class NotifierMarshaller {
+	private static final byte STARTED = 0;
+	private static final byte FAILURE = 1;
+	private static final byte ASSUMPTION_FAILED = 2;
+	private static final byte IGNORED = 3;
+	private static final byte FINISHED = 4;
+
+	private final RunNotifier target;
+
+	private final PrintStream out, err;
+
+	private final BlockingQueue<Buffer> batches = new LinkedBlockingQueue<Buffer>();
+
+	/**
+	 * Once set, tests can no longer start.
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * Set by {@link #cancel()}.
+	 */
+	private volatile boolean cancelled;
+
+	/**
+	 * @param out
+	 *      Receives the captured output, and so does err.
+	 */
+	NotifierMarshaller(RunNotifier target, PrintStream out, PrintStream err) {
+		this.target = target;
+		this.out = out;
+		this.err = err;
+	}
+
+	/**
+	 * Makes {@link Buffer#fireTestStarted(Description)} throw {@link StoppedByUserException}
+	 * from now on.
+	 */
+	void stop() {
+		stopped = true;
+	}
+
+	boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Stops the run because the tests in progress are about to be interrupted.
+	 * From now on, failures are reported as failed assumptions, since they are
+	 * most likely caused by the interruption rather than the tests.
+	 */
+	void cancel() {
+		cancelled = true;
+		stop();
+	}
+
+	/**
+	 * Creates a buffer for a TestClass.
+	 *
+	 * @param failureCallback
+	 *      Invoked whenever a test fails, from the thread that runs the test. Can be null.
+	 */
+	Buffer newBuffer(Runnable failureCallback) {
+		return new Buffer(failureCallback);
+	}
+
+	/**
+	 * Replays batches as they are submitted, until the given number of them have been replayed.
+	 * Called from the suite thread.
+	 */
+	void deliver(int n) {
+		for (int i = 0; i < n; i++)
+			take().replay();
+	}
+
+	private Buffer take() {
+		final Buffer[] b = new Buffer[1];
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					// if this is a pool thread, the pool can make up for it while we wait
+					ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+						public boolean block() throws InterruptedException {
+							if (b[0] == null)
+								b[0] = batches.take();
+							return true;
+						}
+
+						public boolean isReleasable() {
+							return b[0] != null || (b[0] = batches.poll()) != null;
+						}
+					});
+					return b[0];
+				} catch (InterruptedException e) {
+					// every TestClass submits its batch no matter what, so keep waiting
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private static final class Event {
+		final byte kind;
+		final Description description;
+		final Failure failure;
+
+		Event(byte kind, Description description, Failure failure) {
+			this.kind = kind;
+			this.description = description;
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * Records the events of a TestClass, to be replayed on the suite thread.
+	 */
+	final class Buffer extends RunNotifier {
+		private final Runnable failureCallback;
+
+		/**
+		 * Events in the order they are replayed.
+		 */
+		private final List<Event> events = new ArrayList<Event>();
+
+		/**
+		 * Events of the tests that have started but not finished yet.
+		 */
+		private final Map<Description, List<Event>> running = new HashMap<Description, List<Event>>();
+
+		private boolean failed;
+
+		private long nanos;
+
+		private CapturedOutput capturedOut, capturedErr;
+
+		Buffer(Runnable failureCallback) {
+			this.failureCallback = failureCallback;
+		}
+
+		/**
+		 * Returns true if any test failed.
+		 */
+		synchronized boolean hasFailures() {
+			return failed;
+		}
+
+		/**
+		 * Returns the time spent recording and submitting events so far, in nanoseconds.
+		 */
+		synchronized long getNanos() {
+			return nanos;
+		}
+
+		private synchronized void add(Event e, long start) {
+			List<Event> l = running.get(e.description);
+			if (e.kind == STARTED) {
+				l = new ArrayList<Event>(4);
+				running.put(e.description, l);
+			} else if (e.kind == FINISHED && l != null) {
+				running.remove(e.description);
+				l.add(e);
+				events.addAll(l);
+				l = null;
+				e = null;
+			}
+			if (e != null)
+				(l != null ? l : events).add(e);
+			nanos += System.nanoTime() - start;
+		}
+
+		@Override
+		public void fireTestStarted(Description description) throws StoppedByUserException {
+			if (stopped)
+				throw new StoppedByUserException();
+			add(new Event(STARTED, description, null), System.nanoTime());
+		}
+
+		@Override
+		public void fireTestFailure(Failure failure) {
+			if (cancelled) {
+				fireTestAssumptionFailed(new Failure(failure.getDescription(),
+						new AssumptionViolatedException("Aborted as the run was cancelled", failure.getException())));
+				return;
+			}
+			long start = System.nanoTime();
+			synchronized (this) {
+				failed = true;
+			}
+			add(new Event(FAILURE, failure.getDescription(), failure), start);
+			if (failureCallback != null)
+				failureCallback.run();
+		}
+
+		@Override
+		public void fireTestAssumptionFailed(Failure failure) {
+			add(new Event(ASSUMPTION_FAILED, failure.getDescription(), failure), System.nanoTime());
+		}
+
+		@Override
+		public void fireTestIgnored(Description description) {
+			add(new Event(IGNORED, description, null), System.nanoTime());
+		}
+
+		@Override
+		public void fireTestFinished(Description description) {
+			add(new Event(FINISHED, description, null), System.nanoTime());
+		}
+
+		@Override
+		public void pleaseStop() {
+			stop();
+		}
+
+		@Override
+		public void addListener(RunListener listener) {
+			target.addListener(listener);
+		}
+
+		@Override
+		public void addFirstListener(RunListener listener) {
+			target.addFirstListener(listener);
+		}
+
+		@Override
+		public void removeListener(RunListener listener) {
+			target.removeListener(listener);
+		}
+
+		/**
+		 * Describes the recorded events for {@link org.kohsuke.junit.ResultCache}, as
+		 * "started", "ignored" or "finished" followed by the display name of the test.
+		 *
+		 * @return null if a test failed, a test's assumption failed, or a test hasn't finished,
+		 *         in which case the result isn't worth caching.
+		 */
+		synchronized List<String> describe() {
+			if (failed || !running.isEmpty())
+				return null;
+			List<String> r = new ArrayList<String>(events.size());
+			for (Event e : events) {
+				switch (e.kind) {
+				case STARTED:
+					r.add("started " + e.description.getDisplayName());
+					break;
+				case IGNORED:
+					r.add("ignored " + e.description.getDisplayName());
+					break;
+				case FINISHED:
+					r.add("finished " + e.description.getDisplayName());
+					break;
+				default:
+					return null;
+				}
+			}
+			return r;
+		}
+
+		/**
+		 * Sets the output captured while the TestClass ran.
+		 */
+		synchronized void setOutput(CapturedOutput out, CapturedOutput err) {
+			capturedOut = out;
+			capturedErr = err;
+		}
+
+		/**
+		 * Hands the recorded events over to the suite thread.
+		 * Tests that are still running (which should never happen) are reported as they are.
+		 */
+		void submit() {
+			long start = System.nanoTime();
+			synchronized (this) {
+				for (List<Event> l : running.values())
+					events.addAll(l);
+				running.clear();
+			}
+			batches.add(this);
+			synchronized (this) {
+				nanos += System.nanoTime() - start;
+			}
+		}
+
+		/**
+		 * Sends the recorded events to the real notifier.
+		 */
+		private void replay() {
+			List<Event> events;
+			synchronized (this) {
+				events = this.events;
+				if (capturedOut != null)
+					capturedOut.writeTo(out);
+				if (capturedErr != null)
+					capturedErr.writeTo(err);
+				capturedOut = capturedErr = null;
+			}
+			for (int i = 0; i < events.size(); i++) {
+				Event e = events.get(i);
+				switch (e.kind) {
+				case STARTED:
+					try {
+						target.fireTestStarted(e.description);
+					} catch (StoppedByUserException x) {
+						// the real notifier has been stopped. drop the rest of this test
+						stop();
+						while (i + 1 < events.size() && events.get(i + 1).description.equals(e.description)) {
+							i++;
+							if (events.get(i).kind == FINISHED)
+								break;
+						}
+					}
+					break;
+				case FAILURE:
+					target.fireTestFailure(e.failure);
+					break;
+				case ASSUMPTION_FAILED:
+					target.fireTestAssumptionFailed(e.failure);
+					break;
+				case IGNORED:
+					target.fireTestIgnored(e.description);
+					break;
+				case FINISHED:
+					target.fireTestFinished(e.description);
+					break;
+				default:
+					throw new AssertionError(e.kind);
+				}
+			}
+			events.clear();
+		}
+	}
+}
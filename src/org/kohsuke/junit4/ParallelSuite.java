@@ -4,14 +4,36 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
-import java.util.concurrent.Callable;
-import java.util.concurrent.CompletionService;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.kohsuke.junit.AdaptiveThreadCount;
+import org.kohsuke.junit.DependencyIndex;
+import org.kohsuke.junit.FailFast;
+import org.kohsuke.junit.ParallelPrintStream;
+import org.kohsuke.junit.ResourceLocks;
+import org.kohsuke.junit.ResultCache;
+import org.kohsuke.junit.Shard;
+import org.kohsuke.junit.RunMetrics;
+import org.kohsuke.junit.TestHistory;
+import org.kohsuke.junit.ThreadCount;
+
+import org.junit.runner.Description;
 import org.junit.runner.Runner;
 import org.junit.runner.notification.RunNotifier;
+import org.junit.runner.notification.StoppedByUserException;
+import org.junit.runners.BlockJUnit4ClassRunner;
 import org.junit.runners.Suite;
 import org.junit.runners.model.InitializationError;
 import org.junit.runners.model.RunnerBuilder;
@@ -29,7 +51,62 @@ import org.junit.runners.model.Statement;
  * <code>public class TestSuiteClass{}</code><br/>
  *
  * <p>
- * NThreads is number of threads, and is omissible.
+ * NThreads is number of threads, and is omissible. The default is the number of
+ * available CPUs; see {@link ThreadCount}.
+ *
+ * <p>
+ * All the {@link ParallelSuite}s in the JVM share one pool of threads, whose size is given by
+ * the <tt>org.kohsuke.junit.globalThreads</tt> system property (also the number of
+ * available CPUs by default.) NThreads limits how much of the pool a suite uses at a time.
+ * A nested {@link ParallelSuite} runs its TestClasses on the same pool, and the thread that
+ * waits for them helps to run them.
+ *
+ * <p>
+ * The events of each TestClass are buffered and passed to the {@link RunNotifier} on the thread
+ * that runs the suite once the TestClass is done, so listeners are called from one thread and
+ * the output of one TestClass isn't mixed with others'. For the same reason, System.out and
+ * System.err are captured for each TestClass (including the threads it starts), and written
+ * along with its events. With <code>@StreamOutput</code>, lines are written as they are printed instead.
+ *
+ * <p>
+ * With <code>@Adaptive</code>, the number of threads is adjusted while the
+ * tests run; see {@link AdaptiveThreadCount}. It's still bounded by the size of the shared pool.
+ *
+ * <p>
+ * If the <tt>org.kohsuke.junit.history</tt> system property is set, the duration of each
+ * TestClass is recorded in a {@link TestHistory}. The TestClasses that failed in the last
+ * run are started first, followed by the ones that took longer in the past.
+ *
+ * <p>
+ * With <code>@ParallelMethods</code>, the test methods of each TestClass also run in
+ * parallel on the same threads, so NThreads remains the limit.
+ *
+ * <p>
+ * With <code>@VirtualThreads(limit)</code>, each TestClass runs on its own virtual thread,
+ * and at most the given number of them run at the same time.
+ *
+ * <p>
+ * If the <tt>org.kohsuke.junit.metrics</tt> system property is set, the timings of each
+ * TestClass and thread are recorded in a {@link RunMetrics}, available from {@link #getMetrics()}
+ * and as an MBean.
+ *
+ * <p>
+ * TestClasses that use the same {@link org.kohsuke.junit.SharedResource} aren't run at the same time
+ * beyond what the resource allows, and other TestClasses run in their place. The resources are held
+ * for the whole TestClass, and with <code>@ParallelMethods</code>, the methods of a TestClass that
+ * declares resources on its methods run one after another.
+ *
+ * <p>
+ * A suite can be split across machines; see {@link Shard}. It can also skip the TestClasses
+ * that aren't affected by the changes since they last passed; see {@link DependencyIndex},
+ * or report them from a {@link ResultCache}.
+ *
+ * <p>
+ * With <code>@StopAfterFailures(n)</code>, the run is cancelled once n tests have failed:
+ * the TestClasses that haven't started are skipped, the threads running TestClasses are
+ * interrupted, and {@link RunNotifier#pleaseStop()} is called once the failures are reported.
+ * Tests that fail after the cancellation are reported as failed assumptions, and the
+ * TestClasses that were cut short aren't recorded in the history.
  *
  * @see org.junit.runners.Suite
  *
@@ -46,11 +123,132 @@ public class ParallelSuite extends Suite{
 		public int value();
 	}
 
+	/**
+	 * Adjusts the number of threads at runtime, starting from {@link NThreads}.
+	 * Also enabled for all suites by the <tt>org.kohsuke.junit.adaptive</tt> system property.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public @interface Adaptive {
+	}
+
+	/**
+	 * Runs each TestClass on a virtual thread. {@link NThreads} and {@link Adaptive} are ignored.
+	 * Also enabled for all suites by the <tt>org.kohsuke.junit.virtualThreads</tt> system property.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public @interface VirtualThreads {
+		/**
+		 * @return Maximum number of TestClasses that run at the same time.
+		 */
+		public int value() default org.kohsuke.junit.VirtualThreads.DEFAULT_LIMIT;
+	}
+
+	/**
+	 * Runs the test methods of each TestClass in parallel, in addition to
+	 * running the TestClasses in parallel. <tt>@BeforeClass</tt> still runs before
+	 * all the methods of the class, and <tt>@AfterClass</tt> after all of them.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public @interface ParallelMethods {
+	}
+
+	/**
+	 * Cancels the run after the given number of failures.
+	 * Also enabled for all suites by the <tt>org.kohsuke.junit.failFast</tt> system property.
+	 *
+	 * @see FailFast
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public @interface StopAfterFailures {
+		/**
+		 * @return Number of failures.
+		 */
+		public int value() default 1;
+	}
+
+	/**
+	 * Writes out each line that tests print right away, prefixed by the thread and the TestClass,
+	 * instead of holding the output of each TestClass until it ends.
+	 * Also enabled for all suites by the <tt>org.kohsuke.junit.streamOutput</tt> system property.
+	 * A nested suite follows the outermost one.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public @interface StreamOutput {
+	}
+
 	private int nThreads;
 
+	private boolean adaptive;
+
+	private boolean streamOutput;
+
+	private boolean parallelMethods;
+
+	/**
+	 * 0 unless running in the virtual-thread mode.
+	 */
+	private int virtualThreadLimit;
+
+	/**
+	 * 0 unless running in the fail-fast mode.
+	 */
+	private int failFast;
+
+	private AdaptiveThreadCount controller;
+
+	/**
+	 * Metrics of the current or the last run.
+	 */
+	private volatile RunMetrics metrics;
+
+	// state of the current run, shared by the ChildTasks
+	private NotifierMarshaller marshaller;
+	private Failures failures;
+	private ParallelPrintStream out, err;
+	private ResourceLocks locks;
+	private TestHistory history;
+	private Shard shard;
+	private DependencyIndex dependencies;
+	private ResultCache cache;
+
 	public ParallelSuite(Class<?> klass, RunnerBuilder builder) throws InitializationError {
 		super(klass, builder);
+		configure(klass);
+	}
+
+	/**
+	 * Runs the given {@link Runner}s in parallel, as configured by the annotations on klass.
+	 * For a suite whose children aren't listed in <tt>@SuiteClasses</tt>, such as generated ones.
+	 */
+	public ParallelSuite(Class<?> klass, List<Runner> runners) throws InitializationError {
+		super(klass, runners);
+		configure(klass);
+	}
+
+	private void configure(Class<?> klass) throws InitializationError {
 		nThreads = getNThreads(klass);
+		adaptive = klass.isAnnotationPresent(Adaptive.class) || AdaptiveThreadCount.isEnabledByDefault();
+		parallelMethods = klass.isAnnotationPresent(ParallelMethods.class);
+		streamOutput = klass.isAnnotationPresent(StreamOutput.class) || ParallelPrintStream.isStreamingByDefault();
+		VirtualThreads vt = klass.getAnnotation(VirtualThreads.class);
+		virtualThreadLimit = vt != null ? vt.value() : org.kohsuke.junit.VirtualThreads.defaultLimit();
+		StopAfterFailures saf = klass.getAnnotation(StopAfterFailures.class);
+		failFast = saf != null ? Math.max(0, saf.value()) : FailFast.defaultThreshold();
+	}
+
+	/**
+	 * Returns the metrics of the current or the last run.
+	 *
+	 * @return
+	 *      null if the metrics isn't collected.
+	 */
+	public RunMetrics getMetrics() {
+		return metrics;
 	}
 
 	private static int getNThreads(Class<?> klass) throws InitializationError {
@@ -63,8 +261,8 @@ public class ParallelSuite extends Suite{
 	}
 
 	private static final int defaultThreadSize() {
-        return 4;
-    }
+		return ThreadCount.defaultThreadSize();
+	}
 
 	/**
 	 * {@inheritDoc}
@@ -79,28 +277,408 @@ public class ParallelSuite extends Suite{
 	}
 
 	private void runChildren(final RunNotifier notifier) {
-		ExecutorService es = Executors.newFixedThreadPool(nThreads);
-		CompletionService<Object> completionService =
-			new ExecutorCompletionService<Object>(es);
-		for (final Runner runner : getChildren()) {
-			completionService.submit(new Callable<Object>(){
-				public Object call() {
-					runChild(runner, notifier);
-					return null;
+		LaneExecutor lanes = null;
+		ResourceGate gate = null;
+		DependencyIndex ownIndex = null;
+		ResultCache ownCache = null;
+		RunMetrics metrics = null;
+		boolean installed = false;
+		locks = null;
+		history = null;
+		dependencies = null;
+		cache = null;
+		shard = null;
+		marshaller = null;
+		try {
+			Executor executor;
+			if (virtualThreadLimit > 0) {
+				org.kohsuke.junit.VirtualThreads.warnIfUnsupported();
+				executor = createVirtualThreadExecutor();
+			} else {
+				executor = lanes = new LaneExecutor(nThreads);
+				if (adaptive) {
+					final LaneExecutor l = lanes;
+					controller = new AdaptiveThreadCount(new AdaptiveThreadCount.Pool() {
+						public int size() {
+							return l.getLimit();
+						}
+
+						public synchronized void grow() {
+							l.setLimit(l.getLimit() + 1);
+						}
+
+						public synchronized void shrink() {
+							// excess lanes exit once they are done with the current child
+							l.setLimit(l.getLimit() - 1);
+						}
+					}, nThreads);
+					lanes.controller = controller;
+					controller.start();
 				}
-			});
+			}
+
+			if (parallelMethods) {
+				for (Runner runner : getChildren())
+					if (runner instanceof BlockJUnit4ClassRunner && !ResourceGate.hasMethodResources(runner))
+						((BlockJUnit4ClassRunner) runner).setScheduler(new MethodScheduler(executor));
+			}
+
+			locks = ResourceLocks.getDefault();
+			gate = new ResourceGate(locks, executor);
+			locks.addListener(gate);
+
+			history = TestHistory.getDefault();
+			List<Runner> children = new ArrayList<Runner>(getChildren());
+			ownIndex = DependencyIndex.begin();
+			dependencies = DependencyIndex.getActive();
+			ownCache = ResultCache.begin();
+			cache = ResultCache.getActive();
+			if (dependencies != null)
+				children = selectAffected(dependencies, children);
+			shard = Shard.begin();
+			if (shard != null)
+				children = selectShard(shard, children, history);
+			if (history != null)
+				prioritize(children, history);
+
+			// nested suites share the streams installed by the outermost one
+			boolean install = !(System.out instanceof ParallelPrintStream && System.err instanceof ParallelPrintStream);
+			if (install) {
+				out = new ParallelPrintStream(System.out, ParallelPrintStream.DEFAULT_MEMORY_LIMIT, streamOutput);
+				err = new ParallelPrintStream(System.err, ParallelPrintStream.DEFAULT_MEMORY_LIMIT, streamOutput);
+			} else {
+				out = (ParallelPrintStream) System.out;
+				err = (ParallelPrintStream) System.err;
+			}
+
+			marshaller = new NotifierMarshaller(notifier, out, err);
+			failures = new Failures(marshaller);
+
+			metrics = RunMetrics.isEnabledByDefault() ? new RunMetrics(getName()) : null;
+			this.metrics = metrics;
+			if (metrics != null)
+				metrics.register();
+
+			if (install) {
+				System.setOut(out);
+				System.setErr(err);
+				installed = true;
+			}
+
+			for (Runner runner : children) {
+				ResourceLocks.Claim claim = ResourceGate.claimOf(runner, locks);
+				gate.execute(new ChildTask(runner, claim), claim);
+			}
+
+			if (lanes != null)
+				lanes.help();
+			marshaller.deliver(children.size());
+		} finally {
+			if (gate != null)
+				locks.removeListener(gate);
+			if (installed) {
+				System.setOut(out.getBase());
+				System.setErr(err.getBase());
+			}
+			if (metrics != null)
+				metrics.finish();
+			if (controller != null) {
+				controller.stop();
+				controller = null;
+			}
+			// in the shard mode, the history is updated when the shards are merged
+			if (history != null && !Shard.isActive())
+				history.save();
+			if (shard != null)
+				shard.end();
+			if (ownCache != null)
+				ownCache.end();
+			if (ownIndex != null)
+				ownIndex.end();
 		}
-		int n = getChildren().size();
-		try {
-			for (int i = 0; i < n; i++) {
+
+		// now that the failures that caused it have been reported, let the enclosing suites know
+		if (marshaller.isStopped())
+			notifier.pleaseStop();
+	}
+
+	/**
+	 * Picks the children that belong to the shard.
+	 */
+	private static List<Runner> selectShard(Shard shard, List<Runner> children, TestHistory history) {
+		List<String> names = new ArrayList<String>(children.size());
+		long[] durations = new long[children.size()];
+		long avg = history != null ? history.getAverageDuration() : 0;
+		for (int i = 0; i < children.size(); i++) {
+			String name = children.get(i).getDescription().getDisplayName();
+			names.add(name);
+			durations[i] = history != null ? history.getPriority(name, avg).getDuration() : 1;
+		}
+		return shard.select(children, names, durations);
+	}
+
+	/**
+	 * Picks the children affected by the changes.
+	 */
+	private static List<Runner> selectAffected(DependencyIndex dependencies, List<Runner> children) {
+		List<Set<String>> classes = new ArrayList<Set<String>>(children.size());
+		for (Runner r : children)
+			classes.add(classesOf(r));
+		return dependencies.select(children, classes);
+	}
+
+	/**
+	 * Determines the classes of a child for {@link DependencyIndex}.
+	 *
+	 * @return null if the child is a {@link ParallelSuite}, which selects its own children,
+	 *         or if it's not known which classes it runs.
+	 */
+	private static Set<String> classesOf(Runner runner) {
+		if (runner instanceof ParallelSuite)
+			return null;
+		Set<String> r = new TreeSet<String>();
+		classesOf(runner.getDescription(), r);
+		return r.isEmpty() ? null : r;
+	}
+
+	private static void classesOf(Description d, Set<String> r) {
+		if (d.getTestClass() != null)
+			r.add(d.getTestClass().getName());
+		for (Description child : d.getChildren())
+			classesOf(child, r);
+	}
+
+	/**
+	 * Reports the events of a child from the {@link ResultCache} instead of running it.
+	 *
+	 * @return false if the events don't match the tests of the child, in which case nothing is reported.
+	 */
+	private static boolean replay(ResultCache.Entry cached, Runner runner, RunNotifier notifier) {
+		Map<String, Description> tests = new HashMap<String, Description>();
+		List<Description> todo = new ArrayList<Description>();
+		todo.add(runner.getDescription());
+		while (!todo.isEmpty()) {
+			Description d = todo.remove(todo.size() - 1);
+			tests.put(d.getDisplayName(), d);
+			todo.addAll(d.getChildren());
+		}
+
+		List<Description> descriptions = new ArrayList<Description>();
+		for (String e : cached.getEvents()) {
+			Description d = tests.get(e.substring(e.indexOf(' ') + 1));
+			if (d == null)
+				return false;
+			descriptions.add(d);
+		}
+
+		for (int i = 0; i < descriptions.size(); i++) {
+			String e = cached.getEvents().get(i);
+			Description d = descriptions.get(i);
+			if (e.startsWith("started "))
+				notifier.fireTestStarted(d);
+			else if (e.startsWith("ignored "))
+				notifier.fireTestIgnored(d);
+			else
+				notifier.fireTestFinished(d);
+		}
+		return true;
+	}
+
+	/**
+	 * Sorts the children in the order of their {@link TestHistory.Priority}.
+	 */
+	private static void prioritize(List<Runner> children, TestHistory history) {
+		long avg = history.getAverageDuration();
+		final Map<Runner, TestHistory.Priority> priorities = new IdentityHashMap<Runner, TestHistory.Priority>();
+		for (Runner r : children)
+			priorities.put(r, history.getPriority(r.getDescription().getDisplayName(), avg));
+		// stable, so children we know nothing about remain in the original order
+		Collections.sort(children, new Comparator<Runner>() {
+			public int compare(Runner o1, Runner o2) {
+				return priorities.get(o1).compareTo(priorities.get(o2));
+			}
+		});
+	}
+
+	/**
+	 * Runs a child of the suite on a worker thread, records its outcome,
+	 * and hands its events over to the {@link NotifierMarshaller}.
+	 */
+	private final class ChildTask implements Runnable {
+		private final Runner runner;
+
+		private final ResourceLocks.Claim claim;
+
+		private final long submitted = System.nanoTime();
+
+		ChildTask(Runner runner, ResourceLocks.Claim claim) {
+			this.runner = runner;
+			this.claim = claim;
+		}
+
+		private String getDisplayName() {
+			return runner.getDescription().getDisplayName();
+		}
+
+		public void run() {
+			NotifierMarshaller.Buffer buffer = marshaller.newBuffer(failFast > 0 ? failures : null);
+			if (marshaller.isStopped()) {
+				report(buffer);
+				return;
+			}
+			RunMetrics metrics = ParallelSuite.this.metrics;
+			long start = System.nanoTime();
+			long blocked = metrics != null ? RunMetrics.blockedMillis() : 0;
+			final String tag = Thread.currentThread().getName() + " " + getDisplayName();
+			Object key = new Object() {
+				@Override
+				public String toString() {
+					return tag;
+				}
+			};
+			Object outerKey = ParallelPrintStream.bind(key);
+			String cacheKey = cache != null ? cache.keyOf(classesOf(runner), getDisplayName()) : null;
+			ResultCache.Entry cached = cacheKey != null ? cache.get(cacheKey) : null;
+			failures.enter();
+			try {
+				if (cached != null && replay(cached, runner, buffer))
+					cache.hit();
+				else {
+					cached = null;
+					runChild(runner, buffer);
+				}
+			} catch (StoppedByUserException e) {
+				// the run is cancelled
+			} catch (Throwable t) {
+				t.printStackTrace();
+			} finally {
+				failures.exit();
+				buffer.setOutput(out.detach(key), err.detach(key));
+				ParallelPrintStream.bind(outerKey);
+				long end = System.nanoTime();
 				try {
-					completionService.take().get();
-				} catch (Exception e) {
-					e.printStackTrace();
+					long duration = cached != null ? cached.getDuration() : (end - start) / 1000000;
+					// cut short by the cancellation. its outcome and duration mean nothing
+					if (!marshaller.isStopped() || buffer.hasFailures())
+						record(buffer, duration, cached == null ? cacheKey : null);
+					if (metrics != null) {
+						RunMetrics.WorkerMetrics wm = metrics.poolWorker();
+						long report = buffer.getNanos();
+						wm.testFinished(getDisplayName(), start, start - submitted, end - start - report, report);
+						wm.addLockWait(RunMetrics.blockedMillis() - blocked);
+					}
+				} finally {
+					report(buffer);
 				}
 			}
-		} finally {
-			es.shutdown();
 		}
+
+		/**
+		 * Records the outcome of the child in the history, the shard results, the dependency index,
+		 * and the result cache.
+		 *
+		 * @param cacheKey
+		 *      The key to put the result under, or null if it's not to be cached.
+		 */
+		private void record(NotifierMarshaller.Buffer buffer, long duration, String cacheKey) {
+			boolean failed = buffer.hasFailures();
+			if (history != null)
+				history.record(getDisplayName(), duration, failed);
+			if (shard != null)
+				shard.record(getDisplayName(), duration, failed);
+			if (dependencies != null) {
+				Set<String> classes = classesOf(runner);
+				if (classes != null)
+					dependencies.record(classes, failed);
+			}
+			if (cacheKey != null) {
+				List<String> events = buffer.describe();
+				if (events != null)
+					cache.put(cacheKey, duration, events);
+			}
+		}
+
+		/**
+		 * Frees the resources of the child for the others, and submits its events.
+		 */
+		private void report(NotifierMarshaller.Buffer buffer) {
+			locks.release(claim);
+			buffer.submit();
+		}
+	}
+
+	/**
+	 * Counts failures and cancels the run in the fail-fast mode.
+	 */
+	private final class Failures implements Runnable {
+		private final NotifierMarshaller marshaller;
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		volatile boolean cancelled;
+
+		/**
+		 * Threads running children, to be interrupted on cancellation.
+		 */
+		private final Set<Thread> running = new HashSet<Thread>();
+
+		Failures(NotifierMarshaller marshaller) {
+			this.marshaller = marshaller;
+		}
+
+		/**
+		 * Called when a test fails, from the thread that runs it.
+		 */
+		public void run() {
+			if (count.incrementAndGet() == failFast)
+				cancel();
+		}
+
+		private void cancel() {
+			cancelled = true;
+			marshaller.cancel();
+			synchronized (running) {
+				for (Thread t : running)
+					t.interrupt();
+			}
+		}
+
+		void enter() {
+			synchronized (running) {
+				running.add(Thread.currentThread());
+			}
+		}
+
+		void exit() {
+			synchronized (running) {
+				running.remove(Thread.currentThread());
+				// don't let the interrupt leak into whatever this pool thread runs next
+				if (cancelled)
+					Thread.interrupted();
+			}
+		}
+	}
+
+	/**
+	 * Creates an {@link Executor} that runs each task on a new virtual thread,
+	 * but only lets {@link #virtualThreadLimit} of them run at the same time.
+	 */
+	private Executor createVirtualThreadExecutor() {
+		final Semaphore permits = new Semaphore(virtualThreadLimit);
+		final AtomicInteger threadCount = new AtomicInteger();
+		return new Executor() {
+			public void execute(final Runnable r) {
+				org.kohsuke.junit.VirtualThreads.newThread("ParallelSuite-" + threadCount.incrementAndGet(), new Runnable() {
+					public void run() {
+						permits.acquireUninterruptibly();
+						try {
+							r.run();
+						} finally {
+							permits.release();
+						}
+					}
+				}).start();
+			}
+		};
 	}
 }
@@ -0,0 +1,130 @@
+package org.kohsuke.junit4;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.junit.runner.Description;
+import org.junit.runner.Runner;
+import org.junit.runners.ParentRunner;
+import org.junit.runners.Suite;
+import org.kohsuke.junit.ResourceLocks;
+import org.kohsuke.junit.SharedResource;
+
+/**
+ * Passes the TestClasses of a {@link ParallelSuite} to its {@link Executor} once their
+ * {@link SharedResource}s are available.
+ *
+ * <p>
+ * A TestClass that has to wait doesn't take a thread; it's kept here, and the executor
+ * goes on with the other TestClasses. Whenever resources are released, the waiting
+ * TestClasses are looked at again in the order they arrived.
+ */
+final class ResourceGate implements Runnable {
+	private final ResourceLocks locks;
+
+	private final Executor executor;
+
+	/**
+	 * Tasks waiting for their resources.
+	 */
+	private final Map<Runnable, ResourceLocks.Claim> blocked = new LinkedHashMap<Runnable, ResourceLocks.Claim>();
+
+	ResourceGate(ResourceLocks locks, Executor executor) {
+		this.locks = locks;
+		this.executor = executor;
+	}
+
+	/**
+	 * Runs the task on the executor once the resources are acquired.
+	 * The task is responsible for releasing them.
+	 */
+	void execute(Runnable task, ResourceLocks.Claim c) {
+		if (!c.isEmpty()) {
+			synchronized (this) {
+				if (!locks.tryAcquire(c)) {
+					blocked.put(task, c);
+					return;
+				}
+			}
+		}
+		executor.execute(task);
+	}
+
+	/**
+	 * Called when resources are released, possibly by other suites.
+	 */
+	public void run() {
+		List<Runnable> ready = new ArrayList<Runnable>();
+		synchronized (this) {
+			for (Iterator<Map.Entry<Runnable, ResourceLocks.Claim>> itr = blocked.entrySet().iterator(); itr.hasNext();) {
+				Map.Entry<Runnable, ResourceLocks.Claim> e = itr.next();
+				if (locks.tryAcquire(e.getValue())) {
+					itr.remove();
+					ready.add(e.getKey());
+				}
+			}
+		}
+		for (Runnable r : ready)
+			executor.execute(r);
+	}
+
+	/**
+	 * Determines the resources a child of the suite uses, which is the union of those
+	 * declared on the classes and the methods in it. A nested {@link ParallelSuite} takes
+	 * care of its own children, even if it's nested in a plain {@link Suite}, so the
+	 * runners are walked down to the test classes rather than the descriptions.
+	 */
+	static ResourceLocks.Claim claimOf(Runner runner, ResourceLocks locks) {
+		if (runner instanceof ParallelSuite)
+			return ResourceLocks.Claim.NONE;
+		if (runner instanceof Suite) {
+			List<Runner> children = childrenOf((Suite) runner);
+			if (children != null) {
+				ResourceLocks.Claim c = locks.claim(runner.getDescription().getAnnotations());
+				for (Runner child : children)
+					c = c.plus(claimOf(child, locks));
+				return c;
+			}
+		}
+		return claimOf(runner.getDescription(), locks);
+	}
+
+	private static ResourceLocks.Claim claimOf(Description d, ResourceLocks locks) {
+		ResourceLocks.Claim c = locks.claim(d.getAnnotations());
+		for (Description child : d.getChildren())
+			c = c.plus(claimOf(child, locks));
+		return c;
+	}
+
+	/**
+	 * Gets the runners of a {@link Suite}, which it only exposes to subclasses.
+	 *
+	 * @return null if they can't be accessed.
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<Runner> childrenOf(Suite suite) {
+		try {
+			Method m = ParentRunner.class.getDeclaredMethod("getChildren");
+			m.setAccessible(true);
+			return (List<Runner>) m.invoke(suite);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if any test method of the TestClass declares resources,
+	 * in which case the methods can't run in parallel.
+	 */
+	static boolean hasMethodResources(Runner runner) {
+		for (Description child : runner.getDescription().getChildren())
+			if (child.getAnnotation(SharedResource.class) != null || child.getAnnotation(SharedResource.List.class) != null)
+				return true;
+		return false;
+	}
+}
@@ -0,0 +1,59 @@
+package org.kohsuke.junit4;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kohsuke.junit.ThreadCount;
+
+/**
+ * The JVM-wide {@link ForkJoinPool} that all {@link ParallelSuite}s run their
+ * TestClasses and test methods on.
+ *
+ * <p>
+ * Nested suites submit into the same pool instead of creating their own threads,
+ * so the total number of threads running tests stays at the size of this pool.
+ * That's given by the <tt>org.kohsuke.junit.globalThreads</tt> system property,
+ * and defaults to {@link ThreadCount#defaultThreadSize()}.
+ */
+final class SharedPool {
+	public static final String PROPERTY = "org.kohsuke.junit.globalThreads";
+
+	private SharedPool() {
+	}
+
+	private static final class Holder {
+		// the pool index isn't assigned yet when the factory is called
+		static final AtomicInteger count = new AtomicInteger();
+
+		static final ForkJoinPool POOL = new ForkJoinPool(size(),
+				new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+					public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+						ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) {
+						};
+						t.setName("ParallelSuite-worker-" + count.getAndIncrement());
+						t.setDaemon(true);
+						return t;
+					}
+				}, null, false);
+	}
+
+	static ForkJoinPool get() {
+		return Holder.POOL;
+	}
+
+	/**
+	 * Returns true if the current thread belongs to the shared pool.
+	 */
+	static boolean isPoolThread() {
+		Thread t = Thread.currentThread();
+		return t instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) t).getPool() == get();
+	}
+
+	private static int size() {
+		Integer n = Integer.getInteger(PROPERTY);
+		if (n != null && n > 0)
+			return n;
+		return ThreadCount.defaultThreadSize();
+	}
+}
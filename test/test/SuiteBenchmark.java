@@ -0,0 +1,297 @@
+package test;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+import junit.framework.TestResult;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.Runner;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunNotifier;
+import org.kohsuke.junit.ParallelTestSuite;
+import org.kohsuke.junit.ThreadCount;
+import org.kohsuke.junit4.ParallelSuite;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a large suite of synthetic tests through {@link ParallelTestSuite} or {@link ParallelSuite},
+ * to see how scheduling and output capture hold up with realistic suites.
+ *
+ * <p>
+ * Parameters are given as name=value arguments:
+ * <dl>
+ * <dt>runner</dt><dd>junit3 or junit4 (default junit3)</dd>
+ * <dt>tests</dt><dd>number of tests (default 10000)</dd>
+ * <dt>dist</dt><dd>distribution of the test durations: uniform, longtail, or bimodal (default uniform)</dd>
+ * <dt>mean</dt><dd>mean test duration in microseconds (default 100)</dd>
+ * <dt>work</dt><dd>sleep to block for the duration, or spin to keep the CPU busy (default sleep)</dd>
+ * <dt>output</dt><dd>bytes printed to System.out by each test (default 0)</dd>
+ * <dt>failures</dt><dd>fraction of tests that fail (default 0)</dd>
+ * <dt>threads</dt><dd>number of worker threads (default: see {@link ThreadCount})</dd>
+ * <dt>seed</dt><dd>random seed, so that the same suite can be generated again (default 0)</dd>
+ * <dt>runs</dt><dd>number of times to run the suite (default 3)</dd>
+ * </dl>
+ *
+ * <p>
+ * For each run, this reports the wall time, the worker utilization (the time spent in tests
+ * divided by the wall time of all the workers), the overhead per test, and the peak heap usage.
+ * The overhead is the average time from the end of a test to the start of the next one on the
+ * same thread, which is what the framework spends scheduling, handing off and reporting a test.
+ * Unlike the utilization, it doesn't include the time workers sit idle at the end of the run
+ * because the durations of the tests are skewed.
+ */
+public class SuiteBenchmark {
+    private final Map<String,String> params = new HashMap<String,String>();
+
+    /**
+     * Durations of the tests in nanoseconds.
+     */
+    private long[] durations;
+    private boolean[] fails;
+    private byte[] output;
+    private boolean spin;
+
+    /**
+     * Total time spent inside the tests in nanoseconds.
+     */
+    private final AtomicLong busy = new AtomicLong();
+
+    /**
+     * Total time between the end of a test and the start of the next one on the same thread,
+     * in nanoseconds, and the number of such gaps.
+     */
+    private final AtomicLong gaps = new AtomicLong();
+    private final AtomicLong gapCount = new AtomicLong();
+
+    /**
+     * Identifies the current run, so that a pool thread doesn't count the gap since the last run.
+     */
+    private volatile int run;
+
+    /**
+     * The run and the time the last test of this thread ended.
+     */
+    private final ThreadLocal<long[]> lastEnd = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            return new long[]{-1,0};
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        SuiteBenchmark b = new SuiteBenchmark();
+        for( String a : args ) {
+            int idx = a.indexOf('=');
+            if(idx<0)
+                throw new IllegalArgumentException("Expected name=value but got "+a);
+            b.params.put(a.substring(0,idx),a.substring(idx+1));
+        }
+        b.run();
+    }
+
+    private String param(String name, String defaultValue) {
+        String v = params.get(name);
+        return v!=null ? v : defaultValue;
+    }
+
+    private void run() throws Exception {
+        String threads = params.get("threads");
+        if(threads!=null) {
+            System.setProperty(ThreadCount.PROPERTY,threads);
+            // otherwise the shared pool of ParallelSuite caps the number of threads
+            System.setProperty("org.kohsuke.junit.globalThreads",threads);
+        }
+        int nThreads = ThreadCount.defaultThreadSize();
+
+        String runner = param("runner","junit3");
+        int n = Integer.parseInt(param("tests","10000"));
+        String dist = param("dist","uniform");
+        generate(n,dist,Long.parseLong(param("mean","100"))*1000,
+            Double.parseDouble(param("failures","0")),Long.parseLong(param("seed","0")));
+        output = line(Integer.parseInt(param("output","0")));
+        spin = param("work","sleep").equals("spin");
+
+        long sum=0, max=0;
+        for( long d : durations ) {
+            sum += d;
+            max = Math.max(max,d);
+        }
+        System.out.printf("%s: %d tests, %s, %d threads, total %d ms, longest %d ms, ideal wall time %d ms%n",
+            runner, n, dist, nThreads, ms(sum), ms(max), ms(Math.max(sum/nThreads,max)));
+        System.out.printf("%8s %8s %10s %14s%n", "wall(ms)", "util(%)", "us/test", "peak heap(MB)");
+
+        int runs = Integer.parseInt(param("runs","3"));
+        for( int r=0; r<runs; r++ ) {
+            busy.set(0);
+            gaps.set(0);
+            gapCount.set(0);
+            run = r;
+            System.gc();
+            for( MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans() )
+                p.resetPeakUsage();
+
+            PrintStream out = System.out;
+            PrintStream err = System.err;
+            PrintStream nul = new PrintStream(new OutputStream() {
+                public void write(int b) {}
+                public void write(byte[] b, int off, int len) {}
+            });
+            System.setOut(nul);
+            System.setErr(nul);
+            long start = System.nanoTime();
+            try {
+                if(runner.equals("junit4"))
+                    runJUnit4(n);
+                else
+                    runJUnit3(n);
+            } finally {
+                System.setOut(out);
+                System.setErr(err);
+            }
+            long wall = System.nanoTime()-start;
+
+            long heap=0;
+            for( MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans() )
+                if(p.getType()==MemoryType.HEAP)
+                    heap += p.getPeakUsage().getUsed();
+
+            long capacity = wall*nThreads;
+            System.out.printf("%8d %8.1f %10.1f %14d%n",
+                ms(wall), 100.0*busy.get()/capacity,
+                gapCount.get()>0 ? gaps.get()/1000.0/gapCount.get() : 0.0, heap/(1024*1024));
+        }
+    }
+
+    private static long ms(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private void generate(int n, String dist, long mean, double failureRate, long seed) {
+        Random rnd = new Random(seed);
+        durations = new long[n];
+        fails = new boolean[n];
+        for( int i=0; i<n; i++ ) {
+            double d;
+            if(dist.equals("uniform")) {
+                d = rnd.nextDouble()*2*mean;
+            } else if(dist.equals("longtail")) {
+                // Pareto with alpha=1.5, scaled to the mean
+                double alpha = 1.5;
+                d = mean*(alpha-1)/alpha/Math.pow(1-rnd.nextDouble(),1/alpha);
+            } else if(dist.equals("bimodal")) {
+                // 90% short ones and 10% long ones
+                d = rnd.nextDouble()<0.9 ? mean*0.2 : mean*8.2;
+            } else {
+                throw new IllegalArgumentException("Unknown distribution: "+dist);
+            }
+            durations[i] = (long)d;
+            fails[i] = rnd.nextDouble()<failureRate;
+        }
+    }
+
+    private static byte[] line(int size) {
+        byte[] b = new byte[size];
+        for( int i=0; i<size; i++ )
+            b[i] = (byte)((i+1)%80==0 ? '\n' : 'x');
+        return b;
+    }
+
+    /**
+     * The body of the i-th test.
+     */
+    private void execute(int i) {
+        long start = System.nanoTime();
+        long[] last = lastEnd.get();
+        if(last[0]==run) {
+            gaps.addAndGet(start-last[1]);
+            gapCount.incrementAndGet();
+        }
+        try {
+            if(output.length>0)
+                System.out.write(output,0,output.length);
+            long end = start+durations[i];
+            if(spin) {
+                while(System.nanoTime()<end)
+                    ;
+            } else {
+                long d;
+                while((d=end-System.nanoTime())>0)
+                    LockSupport.parkNanos(d);
+            }
+            if(fails[i])
+                throw new AssertionFailedError("test"+i+" failed");
+        } finally {
+            long end = System.nanoTime();
+            busy.addAndGet(end-start);
+            last[0] = run;
+            last[1] = end;
+        }
+    }
+
+    private void runJUnit3(int n) {
+        ParallelTestSuite suite = new ParallelTestSuite();
+        for( int i=0; i<n; i++ )
+            suite.addTest(new SyntheticTest(i));
+        suite.run(new TestResult());
+    }
+
+    private void runJUnit4(int n) throws Exception {
+        List<Runner> runners = new ArrayList<Runner>(n);
+        for( int i=0; i<n; i++ )
+            runners.add(new SyntheticRunner(i));
+        ParallelSuite suite = new ParallelSuite(SuiteBenchmark.class,runners);
+        RunNotifier notifier = new RunNotifier();
+        notifier.addListener(new Result().createListener());
+        suite.run(notifier);
+    }
+
+    public class SyntheticTest extends TestCase {
+        private final int i;
+
+        public SyntheticTest(int i) {
+            super("test"+i);
+            this.i = i;
+        }
+
+        protected void runTest() {
+            execute(i);
+        }
+    }
+
+    private class SyntheticRunner extends Runner {
+        private final int i;
+        private final Description description;
+
+        SyntheticRunner(int i) {
+            this.i = i;
+            this.description = Description.createTestDescription(SuiteBenchmark.class,"test"+i);
+        }
+
+        public Description getDescription() {
+            return description;
+        }
+
+        public void run(RunNotifier notifier) {
+            notifier.fireTestStarted(description);
+            try {
+                execute(i);
+            } catch (AssertionError e) {
+                notifier.fireTestFailure(new Failure(description,e));
+            } finally {
+                notifier.fireTestFinished(description);
+            }
+        }
+    }
+}